@@ -1,10 +1,12 @@
 package photos;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
 import photos.controller.LoginController;
+import photos.controller.ThumbnailCache;
 import photos.model.PhotoApp;
 
 import java.io.IOException;
@@ -49,6 +51,9 @@ public class Photos extends Application {
             primaryStage.setScene(scene);
             primaryStage.show();
             
+            // Keep loaded photos in sync with their files while the app runs
+            photoApp.startWatching(Platform::runLater);
+            
             // Handle window close event to save data
             primaryStage.setOnCloseRequest(e -> {
                 try {
@@ -64,12 +69,15 @@ public class Photos extends Application {
     }
     
     /**
-     * Saves everything when the app closes.
+     * Saves everything when the app closes and stops background saving.
      */
     @Override
     public void stop() {
+        // How the thumbnail caches did this run, for tuning their budgets
+        System.err.println("Image caches: " + ThumbnailCache.report() + ", "
+            + photoApp.getThumbnailStore().getTotalBytes() / 1024 + " KB of thumbnails saved");
         try {
-            photoApp.save();
+            photoApp.close();
         } catch (IOException e) {
             System.err.println("Failed to save data on stop: " + e.getMessage());
         }
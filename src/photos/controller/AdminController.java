@@ -63,9 +63,7 @@ public class AdminController {
      */
     private void refreshUsers() {
         usersList.clear();
-        for (User user : photoApp.getUsers()) {
-            usersList.add(user.getUsername());
-        }
+        usersList.addAll(photoApp.getUsernames());
     }
     
     /**
@@ -125,11 +123,7 @@ public class AdminController {
      */
     @FXML
     private void handleLogout() {
-        try {
-            photoApp.save();
-        } catch (IOException e) {
-            showAlert(Alert.AlertType.ERROR, "Error", "Failed to save data.");
-        }
+        // User changes are written as they're made, nothing to wait for here
         
         // Navigate back to login screen
         try {
@@ -6,15 +6,13 @@ import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.ChoiceDialog;
 import javafx.scene.control.Label;
+import javafx.scene.control.Slider;
 import javafx.scene.control.TextInputDialog;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseEvent;
-import javafx.scene.layout.TilePane;
-import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import photos.model.Album;
+import photos.model.ModelListener;
 import photos.model.Photo;
 import photos.model.PhotoApp;
 import photos.model.Tag;
@@ -36,14 +34,57 @@ public class AlbumViewController {
     @FXML
     private Label albumNameLabel;
     @FXML
-    private TilePane photosTilePane;
+    private PhotoGrid photoGrid;
+    @FXML
+    private Slider sizeSlider;
     
     private PhotoApp photoApp;
     private User user;
     private Album album;
     private Stage primaryStage;
     private List<Photo> photosList;
-    private Photo selectedPhoto;
+    
+    /**
+     * Keeps the grid in step with the album, whether the change came from 
+     * this screen or from outside it, like files being added or deleted on 
+     * disk. Only the tiles a change touches are redone.
+     */
+    private final ModelListener albumListener = new ModelListener() {
+        @Override
+        public void photoAdded(User user, Album changed, Photo photo) {
+            if (changed == album) {
+                // Albums only ever add to the end
+                photoGrid.add(photosList.size(), photo);
+            }
+        }
+        
+        @Override
+        public void photoRemoved(User user, Album changed, Photo photo) {
+            if (changed == album) {
+                photoGrid.remove(photo);
+            }
+        }
+        
+        @Override
+        public void captionChanged(User user, Photo photo) {
+            photoGrid.update(photo);
+        }
+        
+        @Override
+        public void filePathChanged(User user, Photo photo, String oldPath) {
+            photoGrid.update(photo);
+        }
+        
+        @Override
+        public void fileStatusChanged(User user, Photo photo) {
+            photoGrid.update(photo);
+        }
+        
+        @Override
+        public void imageInfoChanged(User user, Photo photo) {
+            photoGrid.update(photo);
+        }
+    };
     
     /**
      * Sets the PhotoApp instance.
@@ -71,6 +112,7 @@ public class AlbumViewController {
     public void setAlbum(Album album) {
         this.album = album;
         albumNameLabel.setText("Album: " + album.getName());
+        user.addListener(albumListener);
     }
     
     /**
@@ -88,72 +130,32 @@ public class AlbumViewController {
     @FXML
     private void initialize() {
         photosList = new ArrayList<>();
+        photoGrid.setTileFactory(this::createPhotoTile);
+        sizeSlider.valueProperty().bindBidirectional(photoGrid.tileSizeProperty());
     }
     
     /**
      * Refreshes the photos list display with thumbnails.
      */
     public void refreshPhotos() {
-        photosTilePane.getChildren().clear();
         photosList.clear();
         photosList.addAll(album.getPhotos());
-        
-        for (Photo photo : photosList) {
-            VBox photoBox = createPhotoThumbnail(photo);
-            photosTilePane.getChildren().add(photoBox);
-        }
+        // Only the tiles on screen are made, the rest as they're scrolled to
+        photoGrid.setItems(photosList);
     }
     
     /**
-     * Creates a thumbnail view for a photo.
+     * Creates a tile for the photo grid, which the grid fills in with 
+     * whichever photo it needs.
      * 
-     * @param photo the photo to create a thumbnail for
-     * @return a VBox containing the thumbnail image and caption
+     * @return an empty tile that selects its photo when clicked
      */
-    private VBox createPhotoThumbnail(Photo photo) {
-        VBox box = new VBox(5);
-        box.setStyle("-fx-border-color: gray; -fx-border-width: 1; -fx-padding: 5;");
-        
-        ImageView imageView = new ImageView();
-        imageView.setFitWidth(150);
-        imageView.setFitHeight(150);
-        imageView.setPreserveRatio(true);
-        imageView.setSmooth(true);
-        
-        File file = new File(photo.getFilePath());
-        if (file.exists()) {
-            Image image = new Image(file.toURI().toString(), 150, 150, true, true);
-            imageView.setImage(image);
-        }
-        
-        Label captionLabel = new Label();
-        String caption = photo.getCaption();
-        if (caption.isEmpty()) {
-            caption = new File(photo.getFilePath()).getName();
-        }
-        if (caption.length() > 20) {
-            caption = caption.substring(0, 17) + "...";
-        }
-        captionLabel.setText(caption);
-        captionLabel.setMaxWidth(150);
-        captionLabel.setWrapText(true);
-        
-        box.getChildren().addAll(imageView, captionLabel);
+    private PhotoTile createPhotoTile() {
+        PhotoTile tile = new PhotoTile(photoApp.getThumbnailStore(), true);
         
         // Make it clickable to select
-        box.setOnMouseClicked((MouseEvent e) -> {
-            // Remove previous selection styling
-            photosTilePane.getChildren().forEach(node -> {
-                if (node instanceof VBox) {
-                    node.setStyle("-fx-border-color: gray; -fx-border-width: 1; -fx-padding: 5;");
-                }
-            });
-            // Add selection styling
-            box.setStyle("-fx-border-color: blue; -fx-border-width: 2; -fx-padding: 5;");
-            selectedPhoto = photo;
-        });
-        
-        return box;
+        tile.setOnMouseClicked((MouseEvent e) -> photoGrid.setSelected(tile.getPhoto()));
+        return tile;
     }
     
     /**
@@ -162,7 +164,7 @@ public class AlbumViewController {
      * @return the selected photo, or null if none selected
      */
     private Photo getSelectedPhoto() {
-        return selectedPhoto;
+        return photoGrid.getSelected();
     }
     
     /**
@@ -178,7 +180,11 @@ public class AlbumViewController {
         
         File selectedFile = fileChooser.showOpenDialog(primaryStage);
         if (selectedFile != null) {
-            Photo photo = new Photo(selectedFile.getAbsolutePath());
+            // Same file is the same photo across the user's albums
+            Photo photo = user.findPhoto(selectedFile.getAbsolutePath());
+            if (photo == null) {
+                photo = new Photo(selectedFile.getAbsolutePath());
+            }
             
             // Check if photo already exists in album
             if (album.getPhotos().contains(photo)) {
@@ -187,7 +193,6 @@ public class AlbumViewController {
             }
             
             album.addPhoto(photo);
-            refreshPhotos();
             showAlert(Alert.AlertType.INFORMATION, "Success", "Photo added successfully.");
         }
     }
@@ -204,8 +209,6 @@ public class AlbumViewController {
         }
         
         album.removePhoto(photo);
-        selectedPhoto = null;
-        refreshPhotos();
         showAlert(Alert.AlertType.INFORMATION, "Success", "Photo removed successfully.");
     }
     
@@ -225,6 +228,7 @@ public class AlbumViewController {
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/photos/resources/PhotoDisplay.fxml"));
             Scene scene = new Scene(loader.load());
             PhotoDisplayController controller = loader.getController();
+            controller.setPhotoApp(photoApp);
             controller.setPhoto(photo);
             controller.setAlbum(album);
             controller.setPhotoIndex(album.getPhotos().indexOf(photo));
@@ -258,7 +262,6 @@ public class AlbumViewController {
         String caption = dialog.showAndWait().orElse(null);
         if (caption != null) {
             photo.setCaption(caption);
-            refreshPhotos();
             showAlert(Alert.AlertType.INFORMATION, "Success", "Caption updated successfully.");
         }
     }
@@ -297,6 +300,8 @@ public class AlbumViewController {
             newTypeDialog.setTitle("Create Tag Type");
             newTypeDialog.setHeaderText(null);
             newTypeDialog.setContentText("Enter new tag type name:");
+            TagCompletion.attach(newTypeDialog.getEditor(),
+                prefix -> user.getSearchIndex().completeTagNames(prefix, TagCompletion.LIMIT));
             
             Optional<String> newType = newTypeDialog.showAndWait();
             if (!newType.isPresent() || newType.get().trim().isEmpty()) {
@@ -317,6 +322,9 @@ public class AlbumViewController {
         valueDialog.setTitle("Add Tag");
         valueDialog.setHeaderText(null);
         valueDialog.setContentText("Enter tag value:");
+        String name = tagType;
+        TagCompletion.attach(valueDialog.getEditor(),
+            prefix -> user.getSearchIndex().completeTagValues(name, prefix, TagCompletion.LIMIT));
         
         Optional<String> tagValue = valueDialog.showAndWait();
         if (!tagValue.isPresent() || tagValue.get().trim().isEmpty()) {
@@ -444,8 +452,6 @@ public class AlbumViewController {
             if (destAlbum != null) {
                 if (destAlbum.addPhoto(photo)) {
                     album.removePhoto(photo);
-                    selectedPhoto = null;
-                    refreshPhotos();
                     showAlert(Alert.AlertType.INFORMATION, "Success", "Photo moved successfully.");
                 } else {
                     showAlert(Alert.AlertType.ERROR, "Error", "Photo already exists in that album.");
@@ -459,6 +465,7 @@ public class AlbumViewController {
      */
     @FXML
     private void handleBack() {
+        user.removeListener(albumListener);
         try {
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/photos/resources/UserAlbums.fxml"));
             Scene scene = new Scene(loader.load());
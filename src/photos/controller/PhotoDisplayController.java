@@ -5,10 +5,10 @@ import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Label;
 import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
 import javafx.stage.Stage;
 import photos.model.Album;
 import photos.model.Photo;
+import photos.model.PhotoApp;
 import photos.model.Tag;
 
 import java.io.File;
@@ -22,7 +22,7 @@ import java.time.format.DateTimeFormatter;
  */
 public class PhotoDisplayController {
     @FXML
-    private ImageView photoImageView;
+    private PhotoView photoView;
     @FXML
     private Label captionLabel;
     @FXML
@@ -35,6 +35,17 @@ public class PhotoDisplayController {
     private int photoIndex;
     private Stage primaryStage;
     private Scene previousScene;
+    /** Reads the album's photos around this one, for the slideshow. */
+    private PhotoPrefetcher prefetcher;
+    
+    /**
+     * Sets the PhotoApp instance.
+     * 
+     * @param photoApp the PhotoApp instance
+     */
+    public void setPhotoApp(PhotoApp photoApp) {
+        photoView.setTileStore(photoApp.getTileStore());
+    }
     
     /**
      * Sets the photo to display.
@@ -52,6 +63,7 @@ public class PhotoDisplayController {
      */
     public void setAlbum(Album album) {
         this.album = album;
+        prefetcher = new PhotoPrefetcher(album.getPhotos(), photoView);
     }
     
     /**
@@ -89,12 +101,17 @@ public class PhotoDisplayController {
             return;
         }
         
-        // Load and display image
-        File file = new File(photo.getFilePath());
-        if (file.exists()) {
-            Image image = new Image(file.toURI().toString());
-            photoImageView.setImage(image);
+        // Load and display image, at the size it's shown. In an album the 
+        // ones around it are read ahead, so stepping to them doesn't wait 
+        // on the disk
+        Image image;
+        if (prefetcher != null && photoIndex >= 0 && photoIndex < album.getPhotos().size()
+                && album.getPhotos().get(photoIndex) == photo) {
+            image = prefetcher.show(photoIndex);
+        } else {
+            image = photoView.load(photo);
         }
+        photoView.show(photo, image);
         
         // Display caption
         String caption = photo.getCaption();
@@ -163,6 +180,9 @@ public class PhotoDisplayController {
      */
     @FXML
     private void handleClose() {
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
         if (previousScene != null) {
             primaryStage.setScene(previousScene);
         } else {
@@ -0,0 +1,386 @@
+package photos.controller;
+
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+import javafx.geometry.Orientation;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Region;
+import javafx.scene.shape.Rectangle;
+import photos.model.Photo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A scrolling grid of photo tiles that only has tiles for the rows on
+ * screen, plus a row above and below. Scrolling moves tiles that go off
+ * screen over to the photos coming on, so the grid has the same few dozen
+ * nodes whether it shows ten photos or twenty thousand.
+ * 
+ * Every tile is the same size, so where any photo goes is worked out from
+ * its index without laying out the ones before it. Adding, removing or
+ * changing one photo only touches the tiles on screen, and selecting one
+ * only restyles the tile losing the selection and the one getting it.
+ * 
+ * How big the tiles are can change, with {@link #tileSizeProperty()} or by
+ * holding Ctrl (Cmd on a Mac) while scrolling. The grid keeps the photo at
+ * the top in view while the columns change.
+ * 
+ * @author Photos Team
+ */
+public final class PhotoGrid extends Region {
+    /** Rows of tiles kept past each edge of the screen, so a short scroll has them ready. */
+    private static final int OVERSCAN = 1;
+    private static final double GAP = 10;
+    /** The smallest and biggest thumbnails the user can pick. */
+    static final int MIN_TILE_SIZE = 64;
+    static final int MAX_TILE_SIZE = 320;
+    
+    private final ScrollBar scrollBar = new ScrollBar();
+    private List<Photo> items = new ArrayList<>();
+    private Supplier<PhotoTile> tileFactory;
+    /** The tile showing each on-screen index. */
+    private final Map<Integer, PhotoTile> shown = new HashMap<>();
+    /** The same tiles by photo. By identity, since a photo's path can change. */
+    private final Map<Photo, PhotoTile> tiles = new IdentityHashMap<>();
+    /** Tiles not in use, ready to show another photo. */
+    private final ArrayDeque<PhotoTile> spare = new ArrayDeque<>();
+    private Photo selected;
+    private final DoubleProperty tileSize = new SimpleDoubleProperty(this, "tileSize", PhotoTile.DEFAULT_SIZE);
+    /** The tile size and the first photo on screen as of the last layout. */
+    private int shownSize = PhotoTile.DEFAULT_SIZE;
+    private int topIndex;
+    
+    /**
+     * Creates an empty grid. Set a tile factory before giving it photos.
+     */
+    public PhotoGrid() {
+        scrollBar.setOrientation(Orientation.VERTICAL);
+        scrollBar.valueProperty().addListener(obs -> requestLayout());
+        getChildren().add(scrollBar);
+        
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(widthProperty());
+        clip.heightProperty().bind(heightProperty());
+        setClip(clip);
+        
+        addEventHandler(ScrollEvent.SCROLL, e -> {
+            if (e.isShortcutDown()) {
+                tileSize.set(tileSize.get() * Math.pow(1.002, e.getDeltaY()));
+            } else {
+                scrollBar.setValue(clamp(scrollBar.getValue() - e.getDeltaY()));
+            }
+            e.consume();
+        });
+        
+        tileSize.addListener((obs, oldSize, size) -> {
+            double clamped = Math.max(MIN_TILE_SIZE, Math.min(MAX_TILE_SIZE, size.doubleValue()));
+            if (clamped != size.doubleValue()) {
+                tileSize.set(clamped);
+            } else {
+                requestLayout();
+            }
+        });
+        
+        // Thumbnails stop loading while the grid's screen is replaced, and
+        // start again if it comes back, like after viewing a photo
+        sceneProperty().addListener((obs, oldScene, scene) -> {
+            if (scene != null) {
+                scene.windowProperty().addListener((o, oldWindow, window) -> {
+                    if (window == null) {
+                        shown.values().forEach(Thumbnails::cancel);
+                    } else {
+                        refresh();
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * The size of the thumbnails, in pixels wide or high, from
+     * {@link #MIN_TILE_SIZE} to {@link #MAX_TILE_SIZE}. Bind a slider to it
+     * to let the user pick.
+     * 
+     * @return the tile size property
+     */
+    DoubleProperty tileSizeProperty() {
+        return tileSize;
+    }
+    
+    /**
+     * Sets how new tiles are made. Click handlers on the tiles should use
+     * {@link PhotoTile#getPhoto()}, since tiles get reused.
+     * 
+     * @param tileFactory makes an empty tile
+     */
+    void setTileFactory(Supplier<PhotoTile> tileFactory) {
+        this.tileFactory = tileFactory;
+    }
+    
+    /**
+     * Shows a list of photos. The grid keeps the list, so change it through
+     * {@link #add}, {@link #addAll}, {@link #remove} and {@link #update}, or
+     * call this again.
+     * 
+     * @param items the photos, in order
+     */
+    void setItems(List<Photo> items) {
+        this.items = items;
+        releaseAll();
+        requestLayout();
+    }
+    
+    /**
+     * Returns the photos the grid shows.
+     * 
+     * @return the photos, in order
+     */
+    List<Photo> getItems() {
+        return items;
+    }
+    
+    /**
+     * Puts a photo into the list. Tiles after it shift over but keep what
+     * they show.
+     * 
+     * @param index where the photo goes
+     * @param photo the photo
+     */
+    void add(int index, Photo photo) {
+        items.add(index, photo);
+        shift(index, 1);
+        requestLayout();
+    }
+    
+    /**
+     * Adds photos to the end of the list, like the next page of a search's
+     * results. The tiles already on screen stay as they are, and the only
+     * new ones made are for added photos that land on screen.
+     * 
+     * @param page the photos, in order
+     */
+    void addAll(List<Photo> page) {
+        items.addAll(page);
+        requestLayout();
+    }
+    
+    /**
+     * Takes a photo out of the list, and out of the selection if it was
+     * selected.
+     * 
+     * @param photo the photo
+     */
+    void remove(Photo photo) {
+        int index = items.indexOf(photo);
+        if (index < 0) {
+            return;
+        }
+        Photo removed = items.remove(index);
+        PhotoTile tile = shown.remove(index);
+        if (tile != null) {
+            release(tile);
+        }
+        shift(index + 1, -1);
+        if (removed == selected) {
+            selected = null;
+        }
+        requestLayout();
+    }
+    
+    /**
+     * Shows a photo again if it's on screen, like after its caption changed.
+     * 
+     * @param photo the photo
+     */
+    void update(Photo photo) {
+        PhotoTile tile = tiles.get(photo);
+        if (tile != null) {
+            tile.show(photo);
+        }
+    }
+    
+    /**
+     * Shows every on-screen photo again, like after a caption changed.
+     */
+    void refresh() {
+        releaseAll();
+        requestLayout();
+    }
+    
+    /**
+     * Scrolls so the photo at an index is on screen.
+     * 
+     * @param index the photo's index
+     */
+    void scrollTo(int index) {
+        int size = sizeOf(tileSize.get());
+        double top = (index / columns(size)) * rowHeight(size);
+        double height = getHeight() - snappedTopInset() - snappedBottomInset();
+        if (top < scrollBar.getValue()) {
+            scrollBar.setValue(clamp(top));
+        } else if (top + PhotoTile.height(size) > scrollBar.getValue() + height) {
+            scrollBar.setValue(clamp(top + PhotoTile.height(size) - height));
+        }
+    }
+    
+    /**
+     * Draws a photo as selected, and the one selected before as not.
+     * 
+     * @param photo the photo to select, or null for none
+     */
+    void setSelected(Photo photo) {
+        PhotoTile old = tiles.get(selected);
+        if (old != null) {
+            old.setSelected(false);
+        }
+        selected = photo;
+        PhotoTile tile = tiles.get(photo);
+        if (tile != null) {
+            tile.setSelected(true);
+        }
+    }
+    
+    /**
+     * Returns the selected photo.
+     * 
+     * @return the photo, or null if none is selected
+     */
+    Photo getSelected() {
+        return selected;
+    }
+    
+    @Override
+    protected void layoutChildren() {
+        double left = snappedLeftInset();
+        double top = snappedTopInset();
+        double width = getWidth() - left - snappedRightInset();
+        double height = getHeight() - top - snappedBottomInset();
+        double barWidth = scrollBar.prefWidth(-1);
+        
+        int size = sizeOf(tileSize.get());
+        int columns = columns(size);
+        int rows = (items.size() + columns - 1) / columns;
+        double rowHeight = rowHeight(size);
+        double contentHeight = Math.max(0, rows * rowHeight - GAP);
+        scrollBar.setMax(Math.max(0, contentHeight - height));
+        scrollBar.setVisibleAmount(height);
+        scrollBar.setBlockIncrement(height);
+        scrollBar.setUnitIncrement(rowHeight / 4);
+        if (size != shownSize) {
+            // Every tile changes, so show them all again, and keep the
+            // photo that was at the top in view
+            releaseAll();
+            scrollBar.setValue((topIndex / columns) * rowHeight);
+            shownSize = size;
+        }
+        scrollBar.setValue(clamp(scrollBar.getValue()));
+        scrollBar.setVisible(contentHeight > height);
+        scrollBar.resizeRelocate(left + width - barWidth, top, barWidth, height);
+        
+        double offset = scrollBar.getValue();
+        int firstVisible = (int) (offset / rowHeight);
+        int lastVisible = (int) ((offset + height) / rowHeight);
+        int from = Math.max(0, firstVisible - OVERSCAN) * columns;
+        topIndex = firstVisible * columns;
+        int to = Math.min(items.size(), (lastVisible + OVERSCAN + 1) * columns);
+        
+        // Free the tiles that scrolled out of range before reusing them
+        Iterator<Map.Entry<Integer, PhotoTile>> it = shown.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, PhotoTile> entry = it.next();
+            if (entry.getKey() < from || entry.getKey() >= to) {
+                it.remove();
+                release(entry.getValue());
+            }
+        }
+        for (int index = from; index < to; index++) {
+            PhotoTile tile = shown.get(index);
+            if (tile == null) {
+                tile = spare.isEmpty() ? tileFactory.get() : spare.pop();
+                tile.setSize(size);
+                tile.show(items.get(index));
+                tile.setSelected(items.get(index) == selected);
+                shown.put(index, tile);
+                tiles.put(tile.getPhoto(), tile);
+                getChildren().add(tile);
+                // Style it now, so it doesn't show unstyled for a frame
+                tile.applyCss();
+            }
+            int row = index / columns;
+            int column = index % columns;
+            tile.resizeRelocate(left + column * (PhotoTile.width(size) + GAP), top + row * rowHeight - offset,
+                PhotoTile.width(size), PhotoTile.height(size));
+            Thumbnails.setVisible(tile, row >= firstVisible && row <= lastVisible);
+        }
+    }
+    
+    @Override
+    protected double computePrefWidth(double height) {
+        return snappedLeftInset() + 4 * PhotoTile.width(PhotoTile.DEFAULT_SIZE) + 3 * GAP + scrollBar.prefWidth(-1) + snappedRightInset();
+    }
+    
+    @Override
+    protected double computePrefHeight(double width) {
+        return snappedTopInset() + 2 * PhotoTile.height(PhotoTile.DEFAULT_SIZE) + GAP + snappedBottomInset();
+    }
+    
+    private int columns(int size) {
+        double width = getWidth() - snappedLeftInset() - snappedRightInset() - scrollBar.prefWidth(-1);
+        return Math.max(1, (int) ((width + GAP) / (PhotoTile.width(size) + GAP)));
+    }
+    
+    private static double rowHeight(int size) {
+        return PhotoTile.height(size) + GAP;
+    }
+    
+    private static int sizeOf(double tileSize) {
+        return (int) Math.round(tileSize);
+    }
+    
+    private double clamp(double value) {
+        return Math.max(0, Math.min(scrollBar.getMax(), value));
+    }
+    
+    /**
+     * Moves the tiles from an index on by some places, after a photo was put
+     * in or taken out before them.
+     */
+    private void shift(int from, int by) {
+        Map<Integer, PhotoTile> moved = new HashMap<>();
+        Iterator<Map.Entry<Integer, PhotoTile>> it = shown.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, PhotoTile> entry = it.next();
+            if (entry.getKey() >= from) {
+                moved.put(entry.getKey() + by, entry.getValue());
+                it.remove();
+            }
+        }
+        shown.putAll(moved);
+    }
+    
+    private void releaseAll() {
+        for (PhotoTile tile : shown.values()) {
+            release(tile);
+        }
+        shown.clear();
+    }
+    
+    /**
+     * Takes a tile out of the grid and keeps it for later. Leaving the scene
+     * cancels its thumbnail if that's still loading.
+     */
+    private void release(PhotoTile tile) {
+        tiles.remove(tile.getPhoto());
+        getChildren().remove(tile);
+        spare.push(tile);
+    }
+}
+
@@ -0,0 +1,274 @@
+package photos.controller;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import photos.model.Photo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Decodes the photos around the one on the photo display screen before the
+ * user steps to them, so Next and Previous show a photo that's already in
+ * memory. How far ahead it reads depends on the user: stepping quickly in
+ * one direction widens the window that way, and slowing down or turning
+ * around shrinks it again.
+ * 
+ * Decoded photos are kept until they'd go over the memory budget, and then
+ * the ones furthest from the current photo go first, so stepping back and
+ * forth over the same few photos doesn't decode them again.
+ * 
+ * Only used from the JavaFX thread, apart from the decoding itself.
+ * 
+ * @author Photos Team
+ */
+class PhotoPrefetcher {
+    /** How many photos to read ahead, when stepping slowly and when quickly. */
+    private static final int MIN_AHEAD = 2;
+    private static final int MAX_AHEAD = 8;
+    /** How many photos to keep ready the other way. */
+    private static final int BEHIND = 1;
+    /** Steps closer together than this count as quick. */
+    private static final long QUICK_STEP_NANOS = 600_000_000L;
+    /** Photos are decoded at screen size, so this holds a few dozen. */
+    private static final long MAX_BYTES = Math.min(128L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4);
+    
+    /** Decodes one photo at a time, nearest first, behind whatever the screen is doing. */
+    private static final ExecutorService DECODER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "photos-prefetch");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+    
+    private final List<Photo> photos;
+    private final PhotoView view;
+    /** By identity, since a photo's path can change. */
+    private final Map<Photo, Entry> entries = new IdentityHashMap<>();
+    private long bytes;
+    private int current = -1;
+    /** 1 for stepping forward, -1 for back. */
+    private int direction = 1;
+    private int ahead = MIN_AHEAD;
+    private long lastStep;
+    
+    private static class Entry {
+        final int index;
+        /** Null until it's decoded, or while it's loading for the screen. */
+        Image image;
+        Future<?> task;
+        /** 0 until the image has loaded. */
+        long bytes;
+        
+        Entry(int index) {
+            this.index = index;
+        }
+    }
+    
+    /**
+     * Creates a prefetcher for stepping through a list of photos.
+     * 
+     * @param photos the photos, like an album's; read as they are at each step
+     * @param view the view the photos are shown in, which sets their size
+     */
+    PhotoPrefetcher(List<Photo> photos, PhotoView view) {
+        this.photos = photos;
+        this.view = view;
+    }
+    
+    /**
+     * Moves to a photo and starts reading the ones around it.
+     * 
+     * @param index the photo's index in the list
+     * @return the photo's image, possibly still loading, or null if its file
+     *         is missing
+     */
+    Image show(int index) {
+        step(index);
+        Photo photo = photos.get(index);
+        Entry entry = entries.get(photo);
+        Image image;
+        if (entry != null && entry.image != null) {
+            image = entry.image;
+        } else {
+            // Not ready yet, so load it in the background like any image,
+            // which at least keeps the screen responsive
+            image = view.load(photo);
+            if (image != null) {
+                if (entry == null) {
+                    entry = new Entry(index);
+                    entries.put(photo, entry);
+                } else if (entry.task != null) {
+                    entry.task.cancel(false);
+                }
+                entry.image = image;
+                watch(photo, entry, image);
+            }
+        }
+        prefetch();
+        return image;
+    }
+    
+    /**
+     * Stops reading ahead and lets go of every image, like when the screen
+     * closes.
+     */
+    void close() {
+        for (Entry entry : entries.values()) {
+            if (entry.task != null) {
+                entry.task.cancel(false);
+            }
+            if (entry.image != null && entry.image.getProgress() < 1) {
+                entry.image.cancel();
+            }
+        }
+        entries.clear();
+        bytes = 0;
+    }
+    
+    /**
+     * Works out which way the user is going and how quickly, and sizes the
+     * window to match.
+     */
+    private void step(int index) {
+        long now = System.nanoTime();
+        if (current >= 0 && index != current) {
+            int size = photos.size();
+            int forward = Math.floorMod(index - current, size);
+            int way = forward <= size / 2 ? 1 : -1;
+            if (way != direction) {
+                direction = way;
+                ahead = MIN_AHEAD;
+            } else if (now - lastStep < QUICK_STEP_NANOS) {
+                ahead = Math.min(MAX_AHEAD, ahead * 2);
+            } else {
+                ahead = Math.max(MIN_AHEAD, ahead - 1);
+            }
+        }
+        current = index;
+        lastStep = now;
+    }
+    
+    /**
+     * Queues the photos in the window, nearest first and the way the user is
+     * going before the other way, and drops queued ones that fell out of it.
+     */
+    private void prefetch() {
+        int size = photos.size();
+        List<Integer> wanted = new ArrayList<>();
+        for (int distance = 1; distance <= Math.max(ahead, BEHIND); distance++) {
+            if (distance <= ahead) {
+                wanted.add(Math.floorMod(current + direction * distance, size));
+            }
+            if (distance <= BEHIND) {
+                wanted.add(Math.floorMod(current - direction * distance, size));
+            }
+        }
+        
+        Set<Photo> window = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int index : wanted) {
+            window.add(photos.get(index));
+        }
+        Photo shown = photos.get(current);
+        
+        Iterator<Map.Entry<Photo, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Photo, Entry> next = it.next();
+            Entry entry = next.getValue();
+            if (entry.image == null && !window.contains(next.getKey())) {
+                entry.task.cancel(false);
+                it.remove();
+            }
+        }
+        for (int index : wanted) {
+            Photo photo = photos.get(index);
+            if (photo == shown || entries.containsKey(photo)) {
+                continue;
+            }
+            // Sized for the view here, decoded on the decoder thread
+            Supplier<Image> decoder = view.decoder(photo);
+            if (decoder == null) {
+                continue;
+            }
+            Entry entry = new Entry(index);
+            entries.put(photo, entry);
+            entry.task = DECODER.submit(() -> {
+                Image image = decoder.get();
+                Platform.runLater(() -> decoded(photo, entry, image));
+            });
+        }
+    }
+    
+    /**
+     * Keeps a photo decoded on the decoder thread, unless it was dropped or
+     * shown some other way in the meantime.
+     */
+    private void decoded(Photo photo, Entry entry, Image image) {
+        if (entries.get(photo) != entry || entry.image != null) {
+            return;
+        }
+        if (image.isError()) {
+            entries.remove(photo);
+            return;
+        }
+        entry.image = image;
+        loaded(entry);
+    }
+    
+    /**
+     * Counts an image loading for the screen once it's done.
+     */
+    private void watch(Photo photo, Entry entry, Image image) {
+        image.progressProperty().addListener((obs, oldProgress, progress) -> {
+            if (progress.doubleValue() >= 1 && entries.get(photo) == entry && !image.isError()) {
+                loaded(entry);
+            }
+        });
+    }
+    
+    /**
+     * Counts a loaded image against the budget, and if that goes over,
+     * drops the images furthest from the current photo until it doesn't.
+     */
+    private void loaded(Entry entry) {
+        entry.bytes = 4L * (long) entry.image.getWidth() * (long) entry.image.getHeight();
+        bytes += entry.bytes;
+        while (bytes > MAX_BYTES) {
+            Photo furthest = null;
+            int furthestDistance = 0;
+            for (Map.Entry<Photo, Entry> next : entries.entrySet()) {
+                int distance = distance(next.getValue().index);
+                if (next.getValue().bytes > 0 && distance > furthestDistance) {
+                    furthest = next.getKey();
+                    furthestDistance = distance;
+                }
+            }
+            if (furthest == null) {
+                // Only the current photo is left
+                return;
+            }
+            bytes -= entries.remove(furthest).bytes;
+        }
+    }
+    
+    /**
+     * How far a photo is from the current one. Photos behind the user count
+     * as twice as far, since they're less likely to be wanted.
+     */
+    private int distance(int index) {
+        int size = photos.size();
+        int forward = Math.floorMod((index - current) * direction, size);
+        int back = size - forward;
+        return forward == 0 ? 0 : Math.min(forward, 2 * back);
+    }
+}
+
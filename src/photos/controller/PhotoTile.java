@@ -0,0 +1,155 @@
+package photos.controller;
+
+import javafx.scene.control.Label;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.StackPane;
+import javafx.scene.layout.VBox;
+import photos.model.Photo;
+import photos.model.ThumbnailStore;
+
+import java.io.File;
+
+/**
+ * One cell of a {@link PhotoGrid}: a photo's thumbnail with its caption
+ * underneath. Tiles are reused for other photos as the grid scrolls, so
+ * everything about the photo is set in {@link #show(Photo)}.
+ * 
+ * @author Photos Team
+ */
+class PhotoTile extends VBox {
+    /** How many pixels wide or high a thumbnail is, unless the grid says otherwise. */
+    static final int DEFAULT_SIZE = 150;
+    
+    private static final String STYLE = "-fx-border-color: gray; -fx-border-width: 1; -fx-padding: 5;";
+    private static final String SELECTED_STYLE = "-fx-border-color: blue; -fx-border-width: 2; -fx-padding: 5;";
+    
+    private final ThumbnailStore store;
+    private final boolean markMissing;
+    private final ImageView imageView = new ImageView();
+    private final StackPane frame = new StackPane(imageView);
+    private final Label captionLabel = new Label();
+    private Photo photo;
+    private int size;
+    
+    /**
+     * Creates an empty tile.
+     * 
+     * @param store where saved thumbnails are kept
+     * @param markMissing true to put "(missing)" in front of the caption of a
+     *                    photo whose file is gone
+     */
+    PhotoTile(ThumbnailStore store, boolean markMissing) {
+        super(5);
+        this.store = store;
+        this.markMissing = markMissing;
+        setStyle(STYLE);
+        
+        imageView.setPreserveRatio(true);
+        imageView.setSmooth(true);
+        frame.setStyle("-fx-background-color: #eeeeee;");
+        captionLabel.setWrapText(true);
+        getChildren().addAll(frame, captionLabel);
+        setSize(DEFAULT_SIZE);
+        
+        // A tile taken out of the grid doesn't need its thumbnail anymore
+        sceneProperty().addListener((obs, oldScene, scene) -> {
+            if (scene == null) {
+                Thumbnails.cancel(this);
+            }
+        });
+    }
+    
+    /**
+     * Returns how wide a tile is for a thumbnail size, with its padding and 
+     * border.
+     * 
+     * @param size how many pixels wide or high the thumbnail is
+     * @return the tile's width
+     */
+    static double width(int size) {
+        return size + 14;
+    }
+    
+    /**
+     * Returns how high a tile is for a thumbnail size, with room for two 
+     * lines of caption.
+     * 
+     * @param size how many pixels wide or high the thumbnail is
+     * @return the tile's height
+     */
+    static double height(int size) {
+        return size + 54;
+    }
+    
+    /**
+     * Sets how big the thumbnail is. Takes effect from the next photo shown.
+     * 
+     * @param size how many pixels wide or high the thumbnail is
+     */
+    void setSize(int size) {
+        this.size = size;
+        imageView.setFitWidth(size);
+        imageView.setFitHeight(size);
+        captionLabel.setMaxWidth(size);
+    }
+    
+    /**
+     * Returns how big the thumbnail is.
+     * 
+     * @return how many pixels wide or high the thumbnail is
+     */
+    int getSize() {
+        return size;
+    }
+    
+    /**
+     * Shows a photo in the tile, replacing whatever it showed before.
+     * 
+     * @param photo the photo to show
+     */
+    void show(Photo photo) {
+        this.photo = photo;
+        Thumbnails.cancel(this);
+        imageView.setImage(null);
+        
+        // Reserve the thumbnail's real shape right away, using the size read
+        // from the file header, and load the image in the background
+        double aspect = photo.hasSize() ? (double) photo.getWidth() / photo.getHeight() : 1;
+        double frameWidth = aspect >= 1 ? size : size * aspect;
+        double frameHeight = aspect >= 1 ? size / aspect : size;
+        frame.setMinSize(frameWidth, frameHeight);
+        frame.setMaxSize(frameWidth, frameHeight);
+        Thumbnails.show(store, photo, size, imageView, this);
+        
+        String caption = photo.getCaption();
+        if (caption.isEmpty()) {
+            caption = new File(photo.getFilePath()).getName();
+        }
+        if (caption.length() > 20) {
+            caption = caption.substring(0, 17) + "...";
+        }
+        if (markMissing && photo.isMissing()) {
+            caption = "(missing) " + caption;
+        }
+        captionLabel.setText(caption);
+    }
+    
+    /**
+     * Returns the photo the tile shows.
+     * 
+     * @return the photo, or null if the tile hasn't shown one yet
+     */
+    Photo getPhoto() {
+        return photo;
+    }
+    
+    /**
+     * Draws the tile as selected or not.
+     * 
+     * @param selected true to draw the selection border
+     */
+    void setSelected(boolean selected) {
+        setStyle(selected ? SELECTED_STYLE : STYLE);
+    }
+}
+
@@ -0,0 +1,471 @@
+package photos.controller;
+
+import javafx.geometry.BoundingBox;
+import javafx.geometry.Bounds;
+import javafx.scene.Group;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.MouseButton;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.transform.Scale;
+import javafx.scene.transform.Translate;
+import javafx.stage.Screen;
+import javafx.stage.Window;
+import photos.model.ImageTiler;
+import photos.model.Photo;
+import photos.model.ThumbnailStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Shows one photo fitted to the screen, turned to its EXIF orientation. The
+ * scroll wheel zooms in where the mouse is, dragging moves the photo around
+ * and a double click fits it again.
+ * 
+ * The photo itself is decoded at the size it's shown at, not its full size
+ * (see {@link #load}), so a 100 megapixel scan takes no more memory than a
+ * phone photo. Zooming in further shows tiles cut from the full size photo
+ * instead (see {@link ImageTiler}): only the tiles on screen, from the level
+ * that matches the zoom, and kept in a cache with a fixed budget. How much
+ * memory a photo takes doesn't depend on how big it is.
+ * 
+ * @author Photos Team
+ */
+public final class PhotoView extends Region {
+    /** The size photos are fitted to until the view has been laid out. */
+    static final double WIDTH = 800;
+    static final double HEIGHT = 600;
+    /** How far in the user can zoom, in screen pixels per photo pixel. */
+    private static final double MAX_ZOOM = 4;
+    /** Photo sized, so the photo has its bounds while its image is still loading. */
+    private final Rectangle frame = new Rectangle();
+    private final ImageView base = new ImageView();
+    private final Group tileLayer = new Group();
+    /** Laid out in the photo's own pixels, and turned to its orientation. */
+    private final Group content = new Group(frame, base, tileLayer);
+    private final Group view = new Group(content);
+    private final Translate pan = new Translate();
+    private final Scale zoom = new Scale();
+    
+    /** The tiles on screen, and the ones still loading, by cache key. */
+    private final Map<String, ImageView> tiles = new HashMap<>();
+    private final Map<String, ThumbnailLoader.Request> loading = new HashMap<>();
+    private ThumbnailStore tileStore;
+    private ImageTiler tiler;
+    private Photo photo;
+    /** A sharper decode of the photo for a view that grew, still loading. */
+    private Image reloading;
+    /** Tells this version of this photo's tiles apart from any other's. */
+    private String tilePrefix;
+    private double photoWidth = WIDTH;
+    private double photoHeight = HEIGHT;
+    /** True until the user zooms or drags, so the photo keeps fitting. */
+    private boolean fitted = true;
+    private double dragX;
+    private double dragY;
+    
+    /**
+     * Creates an empty view.
+     */
+    public PhotoView() {
+        frame.setFill(Color.TRANSPARENT);
+        base.setSmooth(true);
+        view.setManaged(false);
+        view.getTransforms().setAll(pan, zoom);
+        getChildren().add(view);
+        
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(widthProperty());
+        clip.heightProperty().bind(heightProperty());
+        setClip(clip);
+        
+        addEventHandler(ScrollEvent.SCROLL, e -> {
+            zoomAt(e.getX(), e.getY(), Math.pow(1.002, e.getDeltaY()));
+            e.consume();
+        });
+        addEventHandler(MouseEvent.MOUSE_PRESSED, e -> {
+            dragX = e.getX() - pan.getX();
+            dragY = e.getY() - pan.getY();
+        });
+        addEventHandler(MouseEvent.MOUSE_DRAGGED, e -> {
+            pan.setX(e.getX() - dragX);
+            pan.setY(e.getY() - dragY);
+            fitted = false;
+            requestLayout();
+        });
+        addEventHandler(MouseEvent.MOUSE_CLICKED, e -> {
+            if (e.getButton() == MouseButton.PRIMARY && e.getClickCount() == 2) {
+                fitted = true;
+                requestLayout();
+            }
+        });
+        
+        // Tiles stop loading once the screen is closed
+        sceneProperty().addListener((obs, oldScene, scene) -> {
+            if (scene != null) {
+                scene.windowProperty().addListener((o, oldWindow, window) -> {
+                    if (window == null) {
+                        clearTiles();
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Starts loading a photo at the size this view shows it at, in the
+     * background. Call on the JavaFX thread.
+     * 
+     * @param photo the photo
+     * @return the image, still loading, or null if the photo's file is missing
+     */
+    Image load(Photo photo) {
+        Supplier<Image> decoder = decoder(photo, true);
+        return decoder == null ? null : decoder.get();
+    }
+    
+    /**
+     * Works out the size this view shows a photo at, for decoding it later
+     * on another thread. Call on the JavaFX thread.
+     * 
+     * @param photo the photo
+     * @return decodes the image when called, or null if the photo's file is missing
+     */
+    Supplier<Image> decoder(Photo photo) {
+        return decoder(photo, false);
+    }
+    
+    private Supplier<Image> decoder(Photo photo, boolean background) {
+        File file = new File(photo.getFilePath());
+        if (!file.exists()) {
+            return null;
+        }
+        // Before the first layout there's no size yet, so the preferred one
+        // stands in; the photo is decoded again if the view turns out bigger
+        double viewWidth = getWidth() > 0 ? getWidth() : WIDTH;
+        double viewHeight = getHeight() > 0 ? getHeight() : HEIGHT;
+        // Sideways photos are turned after decoding, so they fit the other way round
+        boolean sideways = photo.getOrientation() >= 5;
+        double scale = outputScale();
+        double width = (sideways ? viewHeight : viewWidth) * scale;
+        double height = (sideways ? viewWidth : viewHeight) * scale;
+        if (photo.hasSize()) {
+            // Never bigger than the photo itself
+            width = Math.min(width, photo.getWidth());
+            height = Math.min(height, photo.getHeight());
+        }
+        String url = file.toURI().toString();
+        double requestedWidth = width;
+        double requestedHeight = height;
+        return () -> new Image(url, requestedWidth, requestedHeight, true, true, background);
+    }
+    
+    /**
+     * Sets where zoom tiles are saved. Without one, zooming in only
+     * enlarges the photo as it was decoded.
+     * 
+     * @param tileStore the tile store, or null
+     */
+    void setTileStore(ThumbnailStore tileStore) {
+        this.tileStore = tileStore;
+    }
+    
+    /**
+     * Shows a photo, fitted to the view.
+     * 
+     * @param photo the photo
+     * @param image the photo decoded by {@link #load} or {@link #decoder}, or
+     *              null if it has none
+     */
+    void show(Photo photo, Image image) {
+        clearTiles();
+        if (reloading != null) {
+            reloading.cancel();
+            reloading = null;
+        }
+        this.photo = photo;
+        base.setImage(image);
+        fitted = true;
+        
+        File file = new File(photo.getFilePath());
+        tiler = null;
+        if (photo.hasSize()) {
+            setPhotoSize(photo.getWidth(), photo.getHeight());
+            if (tileStore != null && file.exists()) {
+                tiler = new ImageTiler(file, photo.getWidth(), photo.getHeight(), tileStore);
+                tilePrefix = file.getAbsolutePath() + "@" + file.lastModified() + "/";
+            }
+        } else if (image != null) {
+            // Not known until the image has loaded
+            setPhotoSize(image.getWidth(), image.getHeight());
+            image.widthProperty().addListener(obs -> {
+                if (base.getImage() == image) {
+                    setPhotoSize(image.getWidth(), image.getHeight());
+                }
+            });
+        }
+        if (image != null) {
+            // Tiles wait for the photo, to know if it's sharp enough by itself
+            image.progressProperty().addListener(obs -> requestLayout());
+        }
+        applyOrientation(photo.getOrientation());
+        requestLayout();
+    }
+    
+    private void setPhotoSize(double width, double height) {
+        photoWidth = width > 0 ? width : WIDTH;
+        photoHeight = height > 0 ? height : HEIGHT;
+        frame.setWidth(photoWidth);
+        frame.setHeight(photoHeight);
+        base.setFitWidth(photoWidth);
+        base.setFitHeight(photoHeight);
+        requestLayout();
+    }
+    
+    /**
+     * Turns and mirrors the photo to match its EXIF orientation, so photos
+     * taken with the camera on its side show up right side up.
+     * 
+     * @param orientation the EXIF orientation, 1 to 8
+     */
+    private void applyOrientation(int orientation) {
+        // Mirrored orientations are 2, 4, 5 and 7; the scale is applied before the rotation
+        content.setScaleX(orientation == 2 || orientation == 4 || orientation == 5 || orientation == 7 ? -1 : 1);
+        switch (orientation) {
+            case 3:
+            case 4:
+                content.setRotate(180);
+                break;
+            case 6:
+            case 7:
+                content.setRotate(90);
+                break;
+            case 5:
+            case 8:
+                content.setRotate(270);
+                break;
+            default:
+                content.setRotate(0);
+        }
+    }
+    
+    /**
+     * Zooms by some factor, keeping the point under the mouse in place.
+     */
+    private void zoomAt(double x, double y, double factor) {
+        double fit = fitZoom();
+        double scale = zoom.getX();
+        double next = Math.max(fit, Math.min(Math.max(fit, MAX_ZOOM / outputScale()), scale * factor));
+        pan.setX(x - (x - pan.getX()) * next / scale);
+        pan.setY(y - (y - pan.getY()) * next / scale);
+        zoom.setX(next);
+        zoom.setY(next);
+        fitted = next == fit;
+        requestLayout();
+    }
+    
+    private double fitZoom() {
+        Bounds photo = content.getBoundsInParent();
+        if (photo.getWidth() <= 0 || photo.getHeight() <= 0) {
+            return 1;
+        }
+        return Math.min(getWidth() / photo.getWidth(), getHeight() / photo.getHeight());
+    }
+    
+    private double outputScale() {
+        Window window = getScene() == null ? null : getScene().getWindow();
+        return window != null ? window.getOutputScaleX() : Screen.getPrimary().getOutputScaleX();
+    }
+    
+    @Override
+    protected void layoutChildren() {
+        if (fitted) {
+            double fit = fitZoom();
+            zoom.setX(fit);
+            zoom.setY(fit);
+        }
+        // Centered if it's smaller than the view, otherwise kept from leaving a gap at the edges
+        Bounds photo = content.getBoundsInParent();
+        double scale = zoom.getX();
+        pan.setX(clampPan(pan.getX(), getWidth(), photo.getMinX() * scale, photo.getMaxX() * scale));
+        pan.setY(clampPan(pan.getY(), getHeight(), photo.getMinY() * scale, photo.getMaxY() * scale));
+        reloadIfBlurry();
+        updateTiles();
+    }
+    
+    /**
+     * Decodes the photo again if the view got bigger than what it was
+     * decoded for, like on the first layout or when the window is maximized,
+     * so fitting it doesn't need tiles. The old image stays up until the new
+     * one has loaded.
+     */
+    private void reloadIfBlurry() {
+        Image image = base.getImage();
+        if (photo == null || reloading != null || !fitted || image == null
+                || image.getProgress() < 1 || image.isError()) {
+            return;
+        }
+        // How many screen pixels across the photo takes up, never more than it has
+        double needed = Math.min(photoWidth, zoom.getX() * outputScale() * photoWidth);
+        if (needed <= image.getWidth() * 1.25) {
+            return;
+        }
+        Image sharper = load(photo);
+        if (sharper == null) {
+            return;
+        }
+        reloading = sharper;
+        sharper.progressProperty().addListener(obs -> {
+            if (sharper.getProgress() >= 1 && reloading == sharper) {
+                reloading = null;
+                if (!sharper.isError()) {
+                    base.setImage(sharper);
+                    requestLayout();
+                }
+            }
+        });
+    }
+    
+    private static double clampPan(double value, double size, double min, double max) {
+        if (max - min <= size) {
+            return (size - (max - min)) / 2 - min;
+        }
+        return Math.max(size - max, Math.min(-min, value));
+    }
+    
+    @Override
+    protected double computePrefWidth(double height) {
+        return WIDTH;
+    }
+    
+    @Override
+    protected double computePrefHeight(double width) {
+        return HEIGHT;
+    }
+    
+    /**
+     * Shows the tiles on screen at the level that matches the zoom, if the
+     * decoded photo isn't sharp enough by itself, and drops the rest.
+     */
+    private void updateTiles() {
+        Set<String> wanted = new HashSet<>();
+        Image image = base.getImage();
+        if (tiler != null && image != null && image.getProgress() >= 1 && !image.isError()) {
+            double needed = zoom.getX() * outputScale();
+            int level = needed >= 1 ? 0 : (int) Math.floor(Math.log(1 / needed) / Math.log(2));
+            level = Math.min(level, tiler.getLevels() - 1);
+            if (1.0 / (1 << level) > image.getWidth() / photoWidth) {
+                Bounds visible = content.parentToLocal(view.parentToLocal(
+                    new BoundingBox(0, 0, getWidth(), getHeight())));
+                double span = ImageTiler.TILE_SIZE << level;
+                int firstColumn = Math.max(0, (int) (visible.getMinX() / span));
+                int lastColumn = Math.min(tiler.getColumns(level) - 1, (int) (visible.getMaxX() / span));
+                int firstRow = Math.max(0, (int) (visible.getMinY() / span));
+                int lastRow = Math.min(tiler.getRows(level) - 1, (int) (visible.getMaxY() / span));
+                for (int row = firstRow; row <= lastRow; row++) {
+                    for (int column = firstColumn; column <= lastColumn; column++) {
+                        String key = tilePrefix + level + "/" + column + "/" + row;
+                        wanted.add(key);
+                        if (!tiles.containsKey(key)) {
+                            showTile(key, level, column, row);
+                        }
+                    }
+                }
+            }
+        }
+        
+        Iterator<Map.Entry<String, ImageView>> shown = tiles.entrySet().iterator();
+        while (shown.hasNext()) {
+            Map.Entry<String, ImageView> entry = shown.next();
+            if (!wanted.contains(entry.getKey())) {
+                tileLayer.getChildren().remove(entry.getValue());
+                shown.remove();
+            }
+        }
+        Iterator<Map.Entry<String, ThumbnailLoader.Request>> pending = loading.entrySet().iterator();
+        while (pending.hasNext()) {
+            Map.Entry<String, ThumbnailLoader.Request> entry = pending.next();
+            if (!wanted.contains(entry.getKey())) {
+                entry.getValue().cancel();
+                pending.remove();
+            }
+        }
+    }
+    
+    private void showTile(String key, int level, int column, int row) {
+        Image cached = ThumbnailCache.tiles().get(key);
+        if (cached != null) {
+            placeTile(key, level, column, row, cached);
+            return;
+        }
+        if (loading.containsKey(key)) {
+            return;
+        }
+        ImageTiler source = tiler;
+        ThumbnailLoader.Request request = ThumbnailLoader.shared().submit(
+            () -> readTile(source, level, column, row),
+            image -> {
+                loading.remove(key);
+                if (image == null || image.isError()) {
+                    // Don't keep trying a photo that can't be tiled
+                    if (tiler == source) {
+                        tiler = null;
+                    }
+                    return;
+                }
+                ThumbnailCache.tiles().put(key, image, 4L * (long) image.getWidth() * (long) image.getHeight());
+                if (tiler == source) {
+                    placeTile(key, level, column, row, image);
+                }
+            });
+        request.setVisible(true);
+        loading.put(key, request);
+    }
+    
+    /**
+     * Reads a tile on a loader thread, cutting it from the photo first if
+     * it isn't saved yet.
+     */
+    private static Image readTile(ImageTiler source, int level, int column, int row) {
+        try {
+            File file = source.tile(level, column, row);
+            return file == null ? null : new Image(file.toURI().toString());
+        } catch (IOException e) {
+            System.err.println("Failed to read zoom tile: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    private void placeTile(String key, int level, int column, int row, Image image) {
+        int step = 1 << level;
+        ImageView tile = new ImageView(image);
+        tile.setSmooth(true);
+        tile.setX(column * ImageTiler.TILE_SIZE * step);
+        tile.setY(row * ImageTiler.TILE_SIZE * step);
+        tile.setFitWidth(image.getWidth() * step);
+        tile.setFitHeight(image.getHeight() * step);
+        tiles.put(key, tile);
+        tileLayer.getChildren().add(tile);
+    }
+    
+    private void clearTiles() {
+        for (ThumbnailLoader.Request request : loading.values()) {
+            request.cancel();
+        }
+        loading.clear();
+        tiles.clear();
+        tileLayer.getChildren().clear();
+    }
+}
+
@@ -1,5 +1,6 @@
 package photos.controller;
 
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
@@ -7,19 +8,20 @@ import javafx.scene.control.Alert;
 import javafx.scene.control.DatePicker;
 import javafx.scene.control.Label;
 import javafx.scene.control.RadioButton;
+import javafx.scene.control.Slider;
 import javafx.scene.control.TextField;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.control.ToggleGroup;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.GridPane;
-import javafx.scene.layout.TilePane;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import photos.model.Album;
+import photos.model.Facet;
 import photos.model.Photo;
 import photos.model.PhotoApp;
+import photos.model.Query;
+import photos.model.SearchIndex;
 import photos.model.Tag;
 import photos.model.User;
 
@@ -29,10 +31,17 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 /**
  * Controller for the search screen.
- * Handles searching for photos by date range or tags.
+ * Handles searching for photos by date range, tags, caption or file name 
+ * text, or a typed query.
  * 
  * @author Photos Team
  */
@@ -56,13 +65,35 @@ public class SearchController {
     @FXML
     private RadioButton orRadio;
     @FXML
-    private TilePane resultsTilePane;
+    private PhotoGrid resultsGrid;
+    @FXML
+    private Slider sizeSlider;
+    @FXML
+    private Label statusLabel;
+    @FXML
+    private Label facetTitleLabel;
+    @FXML
+    private VBox facetBox;
     
     private PhotoApp photoApp;
     private User user;
     private Stage primaryStage;
     private List<Photo> searchResults;
     
+    /** How many photos to add to the grid at a time. */
+    private static final int PAGE_SIZE = 500;
+    /** How many values to list under each tag name. */
+    private static final int FACET_LIMIT = 10;
+    /** Runs searches off the FX thread, one at a time. */
+    private static final ExecutorService SEARCH_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "photos-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> runningSearch;
+    /** Goes up with each search, so results from an older one are dropped. */
+    private int searchId;
+    
     /**
      * Sets the PhotoApp instance.
      * 
@@ -79,6 +110,9 @@ public class SearchController {
      */
     public void setUser(User user) {
         this.user = user;
+        // Until there are results, show the tags across the whole library
+        facetTitleLabel.setText("Tags in all photos");
+        showFacets(user.getSearchIndex().libraryFacets(FACET_LIMIT));
     }
     
     /**
@@ -94,6 +128,14 @@ public class SearchController {
     private GridPane dateRangePane;
     @FXML
     private VBox tagSearchPane;
+    @FXML
+    private VBox textPane;
+    @FXML
+    private TextField textField;
+    @FXML
+    private VBox queryPane;
+    @FXML
+    private TextField queryField;
     
     /**
      * Initializes the controller.
@@ -101,22 +143,48 @@ public class SearchController {
     @FXML
     private void initialize() {
         searchResults = new ArrayList<>();
+        resultsGrid.setTileFactory(this::createPhotoTile);
+        sizeSlider.valueProperty().bindBidirectional(resultsGrid.tileSizeProperty());
+        
+        // Suggest tag names and values already in use as they're typed
+        TagCompletion.attach(tagType1Field, this::completeTagNames);
+        TagCompletion.attach(tagValue1Field, prefix -> completeTagValues(tagType1Field, prefix));
+        TagCompletion.attach(tagType2Field, this::completeTagNames);
+        TagCompletion.attach(tagValue2Field, prefix -> completeTagValues(tagType2Field, prefix));
         
         // Toggle visibility based on search type
         searchTypeGroup.selectedToggleProperty().addListener((obs, oldVal, newVal) -> {
             if (newVal != null) {
                 RadioButton selected = (RadioButton) newVal;
                 boolean isDateSearch = selected.getText().contains("Date");
+                boolean isQuerySearch = selected.getText().contains("Query");
+                boolean isTextSearch = selected.getText().contains("Caption");
+                boolean isTagSearch = !isDateSearch && !isQuerySearch && !isTextSearch;
                 dateRangePane.setVisible(isDateSearch);
                 dateRangePane.setManaged(isDateSearch);
-                tagSearchPane.setVisible(!isDateSearch);
-                tagSearchPane.setManaged(!isDateSearch);
+                tagSearchPane.setVisible(isTagSearch);
+                tagSearchPane.setManaged(isTagSearch);
+                textPane.setVisible(isTextSearch);
+                textPane.setManaged(isTextSearch);
+                queryPane.setVisible(isQuerySearch);
+                queryPane.setManaged(isQuerySearch);
             }
         });
     }
     
+    private List<String> completeTagNames(String prefix) {
+        return user.getSearchIndex().completeTagNames(prefix, TagCompletion.LIMIT);
+    }
+    
+    private List<String> completeTagValues(TextField typeField, String prefix) {
+        return user.getSearchIndex().completeTagValues(typeField.getText().trim(), prefix, TagCompletion.LIMIT);
+    }
+    
     /**
-     * Handles the search button action.
+     * Handles the search button action. The search itself runs in the 
+     * background and replaces any search still running. Its results go to
+     * the grid a page at a time, and the tags in them are counted after 
+     * the results are shown.
      */
     @FXML
     private void handleSearch() {
@@ -125,58 +193,144 @@ public class SearchController {
             return;
         }
         
-        searchResults.clear();
-        resultsTilePane.getChildren().clear();
-        
+        Supplier<List<Photo>> search;
         if (selected.getText().contains("Date")) {
-            searchByDateRange();
+            search = searchByDateRange();
+        } else if (selected.getText().contains("Query")) {
+            search = searchByQuery();
+        } else if (selected.getText().contains("Caption")) {
+            search = searchByText();
         } else {
-            searchByTags();
+            search = searchByTags();
         }
-        
-        // Display results as thumbnails
-        if (searchResults.isEmpty()) {
-            showAlert(Alert.AlertType.INFORMATION, "Search Results", "No photos found matching the criteria.");
+        if (search != null) {
+            startSearch(search);
+        }
+    }
+    
+    /**
+     * Cancels the running search, clears the results and runs a new search 
+     * on the search thread. The results are shown as soon as they're found;
+     * counting the tags in them is a second step whose counts come after.
+     */
+    private void startSearch(Supplier<List<Photo>> search) {
+        cancelSearch();
+        int id = searchId;
+        searchResults = new ArrayList<>();
+        // The grid gets its own list to add pages to, since results can be
+        // shared with the query cache
+        resultsGrid.setItems(new ArrayList<>());
+        statusLabel.setText("Searching...");
+        SearchIndex index = user.getSearchIndex();
+        runningSearch = SEARCH_EXECUTOR.submit(() -> {
+            try {
+                List<Photo> found = search.get();
+                Platform.runLater(() -> showResults(id, found));
+                Map<String, List<Facet>> facets = index.facets(found, FACET_LIMIT);
+                Platform.runLater(() -> {
+                    if (id == searchId) {
+                        showFacets(facets);
+                    }
+                });
+            } catch (CancellationException e) {
+                // A newer search took over
+            } catch (RuntimeException e) {
+                Platform.runLater(() -> {
+                    if (id == searchId) {
+                        statusLabel.setText("Search failed: " + e.getMessage());
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Stops the running search, if any, and drops any pages it still has 
+     * waiting to be shown.
+     */
+    private void cancelSearch() {
+        searchId++;
+        if (runningSearch != null) {
+            runningSearch.cancel(true);
+            runningSearch = null;
+        }
+    }
+    
+    private void showResults(int id, List<Photo> found) {
+        if (id != searchId) {
+            return;
+        }
+        searchResults = found;
+        facetTitleLabel.setText("Tags in results");
+        facetBox.getChildren().setAll(new Label(found.isEmpty() ? "No tags" : "Counting..."));
+        if (found.isEmpty()) {
+            statusLabel.setText("No photos found matching the criteria.");
         } else {
-            for (Photo photo : searchResults) {
-                VBox photoBox = createPhotoThumbnail(photo);
-                resultsTilePane.getChildren().add(photoBox);
+            resultsGrid.scrollTo(0);
+            showPage(id, 0);
+        }
+    }
+    
+    /**
+     * Adds one page of results to the grid, then queues the next page behind
+     * whatever else the FX thread has to do.
+     */
+    private void showPage(int id, int from) {
+        if (id != searchId) {
+            return;
+        }
+        int to = Math.min(from + PAGE_SIZE, searchResults.size());
+        resultsGrid.addAll(searchResults.subList(from, to));
+        if (to < searchResults.size()) {
+            statusLabel.setText("Found " + searchResults.size() + " photo(s), showing " + to + "...");
+            Platform.runLater(() -> showPage(id, to));
+        } else {
+            statusLabel.setText("Found " + searchResults.size() + " photo(s).");
+        }
+    }
+    
+    /**
+     * Lists how many photos have each tag value, grouped by tag name.
+     */
+    private void showFacets(Map<String, List<Facet>> facets) {
+        List<Label> labels = new ArrayList<>();
+        for (Map.Entry<String, List<Facet>> entry : facets.entrySet()) {
+            Label name = new Label(entry.getKey());
+            name.setStyle("-fx-font-weight: bold;");
+            labels.add(name);
+            for (Facet facet : entry.getValue()) {
+                labels.add(new Label("  " + facet.getTag().getValue() + " (" + facet.getCount() + ")"));
             }
-            showAlert(Alert.AlertType.INFORMATION, "Search Results", "Found " + searchResults.size() + " photo(s).");
         }
+        if (labels.isEmpty()) {
+            labels.add(new Label("No tags"));
+        }
+        facetBox.getChildren().setAll(labels);
     }
     
     /**
      * Searches for photos by date range.
      */
-    private void searchByDateRange() {
+    private Supplier<List<Photo>> searchByDateRange() {
         LocalDate startDate = startDatePicker.getValue();
         LocalDate endDate = endDatePicker.getValue();
         
         if (startDate == null || endDate == null) {
             showAlert(Alert.AlertType.ERROR, "Error", "Please select both start and end dates.");
-            return;
+            return null;
         }
         
         LocalDateTime startDateTime = startDate.atStartOfDay();
         LocalDateTime endDateTime = endDate.atTime(23, 59, 59);
         
-        for (Album album : user.getAlbums()) {
-            for (Photo photo : album.getPhotos()) {
-                LocalDateTime photoDate = photo.getDateTaken();
-                if (!photoDate.isBefore(startDateTime) && !photoDate.isAfter(endDateTime)) {
-                    if (!searchResults.contains(photo)) {
-                        searchResults.add(photo);
-                    }
-                }
-            }
-        }
+        SearchIndex index = user.getSearchIndex();
+        return () -> index.findByDate(startDateTime, endDateTime);
     }
     
     /**
      * Searches for photos by tags.
      */
-    private void searchByTags() {
+    private Supplier<List<Photo>> searchByTags() {
         String type1 = tagType1Field.getText().trim();
         String value1 = tagValue1Field.getText().trim();
         String type2 = tagType2Field.getText().trim();
@@ -184,7 +338,7 @@ public class SearchController {
         
         if (type1.isEmpty() || value1.isEmpty()) {
             showAlert(Alert.AlertType.ERROR, "Error", "Please enter at least one tag type and value.");
-            return;
+            return null;
         }
         
         Tag tag1 = new Tag(type1, value1);
@@ -192,30 +346,47 @@ public class SearchController {
         Tag tag2 = useTwoTags ? new Tag(type2, value2) : null;
         boolean useAnd = andRadio.isSelected();
         
-        for (Album album : user.getAlbums()) {
-            for (Photo photo : album.getPhotos()) {
-                boolean matches = false;
-                
-                if (!useTwoTags) {
-                    // Single tag search
-                    matches = photo.hasTag(tag1);
-                } else {
-                    // Two tag search
-                    boolean hasTag1 = photo.hasTag(tag1);
-                    boolean hasTag2 = photo.hasTag(tag2);
-                    
-                    if (useAnd) {
-                        matches = hasTag1 && hasTag2;
-                    } else {
-                        matches = hasTag1 || hasTag2;
-                    }
-                }
-                
-                if (matches && !searchResults.contains(photo)) {
-                    searchResults.add(photo);
-                }
-            }
+        // The index gives each photo once, even if it's in several albums
+        SearchIndex index = user.getSearchIndex();
+        if (!useTwoTags) {
+            return () -> index.findByTag(tag1);
+        }
+        return () -> index.findByTags(tag1, tag2, useAnd);
+    }
+    
+    /**
+     * Searches captions and file names for some text, best matches first.
+     */
+    private Supplier<List<Photo>> searchByText() {
+        String text = textField.getText().trim();
+        if (text.isEmpty()) {
+            showAlert(Alert.AlertType.ERROR, "Error", "Please enter some text to search for.");
+            return null;
+        }
+        SearchIndex index = user.getSearchIndex();
+        return () -> index.findText(text, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Searches with a typed query, like 
+     * <code>person=alice AND (location=paris OR date:2024-06) AND NOT album:Work</code>.
+     */
+    private Supplier<List<Photo>> searchByQuery() {
+        String text = queryField.getText().trim();
+        if (text.isEmpty()) {
+            showAlert(Alert.AlertType.ERROR, "Error", "Please enter a query.");
+            return null;
+        }
+        
+        Query query;
+        try {
+            query = Query.parse(text);
+        } catch (IllegalArgumentException e) {
+            showAlert(Alert.AlertType.ERROR, "Invalid Query", e.getMessage());
+            return null;
         }
+        SearchIndex index = user.getSearchIndex();
+        return () -> index.find(query);
     }
     
     /**
@@ -245,9 +416,7 @@ public class SearchController {
         }
         
         Album newAlbum = new Album(albumName);
-        for (Photo photo : searchResults) {
-            newAlbum.addPhoto(photo);
-        }
+        newAlbum.addPhotos(searchResults);
         
         user.addAlbum(newAlbum);
         showAlert(Alert.AlertType.INFORMATION, "Success", "Album created successfully with " + searchResults.size() + " photos.");
@@ -258,6 +427,7 @@ public class SearchController {
      */
     @FXML
     private void handleBack() {
+        cancelSearch();
         try {
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/photos/resources/UserAlbums.fxml"));
             Scene scene = new Scene(loader.load());
@@ -274,61 +444,41 @@ public class SearchController {
     }
     
     /**
-     * Creates a thumbnail view for a photo in search results.
+     * Creates a tile for the results grid, which the grid fills in with 
+     * whichever photo it needs.
      * 
-     * @param photo the photo to create a thumbnail for
-     * @return a VBox containing the thumbnail image and caption
+     * @return an empty tile that opens its photo when clicked
      */
-    private VBox createPhotoThumbnail(Photo photo) {
-        VBox box = new VBox(5);
-        box.setStyle("-fx-border-color: gray; -fx-border-width: 1; -fx-padding: 5;");
-        
-        ImageView imageView = new ImageView();
-        imageView.setFitWidth(150);
-        imageView.setFitHeight(150);
-        imageView.setPreserveRatio(true);
-        imageView.setSmooth(true);
-        
-        File file = new File(photo.getFilePath());
-        if (file.exists()) {
-            Image image = new Image(file.toURI().toString(), 150, 150, true, true);
-            imageView.setImage(image);
-        }
-        
-        Label captionLabel = new Label();
-        String caption = photo.getCaption();
-        if (caption.isEmpty()) {
-            caption = new File(photo.getFilePath()).getName();
-        }
-        if (caption.length() > 20) {
-            caption = caption.substring(0, 17) + "...";
-        }
-        captionLabel.setText(caption);
-        captionLabel.setMaxWidth(150);
-        captionLabel.setWrapText(true);
-        
-        box.getChildren().addAll(imageView, captionLabel);
+    private PhotoTile createPhotoTile() {
+        PhotoTile tile = new PhotoTile(photoApp.getThumbnailStore(), false);
         
         // Make it clickable to view
-        box.setOnMouseClicked((MouseEvent e) -> {
-            try {
-                Scene currentScene = primaryStage.getScene();
-                FXMLLoader loader = new FXMLLoader(getClass().getResource("/photos/resources/PhotoDisplay.fxml"));
-                Scene scene = new Scene(loader.load());
-                photos.controller.PhotoDisplayController controller = loader.getController();
-                controller.setPhoto(photo);
-                controller.setPrimaryStage(primaryStage);
-                controller.setPreviousScene(currentScene);
-                controller.displayPhoto();
-                primaryStage.setScene(scene);
-                primaryStage.setTitle("Photo: " + (photo.getCaption().isEmpty() ? 
-                    new File(photo.getFilePath()).getName() : photo.getCaption()));
-            } catch (IOException ex) {
-                showAlert(Alert.AlertType.ERROR, "Error", "Failed to load photo display.");
-            }
-        });
-        
-        return box;
+        tile.setOnMouseClicked((MouseEvent e) -> openPhoto(tile.getPhoto()));
+        return tile;
+    }
+    
+    /**
+     * Shows a photo on the photo display screen, coming back here after.
+     * 
+     * @param photo the photo to show
+     */
+    private void openPhoto(Photo photo) {
+        try {
+            Scene currentScene = primaryStage.getScene();
+            FXMLLoader loader = new FXMLLoader(getClass().getResource("/photos/resources/PhotoDisplay.fxml"));
+            Scene scene = new Scene(loader.load());
+            photos.controller.PhotoDisplayController controller = loader.getController();
+            controller.setPhotoApp(photoApp);
+            controller.setPhoto(photo);
+            controller.setPrimaryStage(primaryStage);
+            controller.setPreviousScene(currentScene);
+            controller.displayPhoto();
+            primaryStage.setScene(scene);
+            primaryStage.setTitle("Photo: " + (photo.getCaption().isEmpty() ? 
+                new File(photo.getFilePath()).getName() : photo.getCaption()));
+        } catch (IOException ex) {
+            showAlert(Alert.AlertType.ERROR, "Error", "Failed to load photo display.");
+        }
     }
     
     /**
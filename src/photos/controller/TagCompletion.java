@@ -0,0 +1,65 @@
+package photos.controller;
+
+import javafx.geometry.Side;
+import javafx.scene.control.ContextMenu;
+import javafx.scene.control.MenuItem;
+import javafx.scene.control.TextField;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Shows suggestions under a text field while the user types, like tag names
+ * and values that are already in use. Picking one fills in the field.
+ * 
+ * @author Photos Team
+ */
+class TagCompletion {
+    /** How many suggestions to show at once. */
+    static final int LIMIT = 8;
+    
+    private TagCompletion() {
+    }
+    
+    /**
+     * Starts suggesting for a text field.
+     * 
+     * @param field the field to suggest for
+     * @param suggestions gives the suggestions for what's been typed, best first
+     */
+    static void attach(TextField field, Function<String, List<String>> suggestions) {
+        ContextMenu menu = new ContextMenu();
+        field.textProperty().addListener((obs, oldText, newText) -> {
+            String typed = newText == null ? "" : newText.trim();
+            if (!field.isFocused() || typed.isEmpty()) {
+                menu.hide();
+                return;
+            }
+            List<String> found = suggestions.apply(typed);
+            if (found.isEmpty() || (found.size() == 1 && found.get(0).equals(typed))) {
+                menu.hide();
+                return;
+            }
+            List<MenuItem> items = new ArrayList<>();
+            for (String suggestion : found) {
+                MenuItem item = new MenuItem(suggestion);
+                item.setOnAction(e -> {
+                    field.setText(suggestion);
+                    field.positionCaret(suggestion.length());
+                });
+                items.add(item);
+            }
+            menu.getItems().setAll(items);
+            if (!menu.isShowing()) {
+                menu.show(field, Side.BOTTOM, 0, 0);
+            }
+        });
+        field.focusedProperty().addListener((obs, wasFocused, focused) -> {
+            if (!focused) {
+                menu.hide();
+            }
+        });
+    }
+}
+
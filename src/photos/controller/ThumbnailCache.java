@@ -0,0 +1,130 @@
+package photos.controller;
+
+import javafx.scene.image.Image;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps decoded thumbnails in memory for every screen to share, so showing
+ * an album again, or a photo that's in both an album and the search results,
+ * reuses the image instead of loading it again. Bounded by how many bytes
+ * the images' pixels take, not how many there are; the least recently used
+ * images go first.
+ * 
+ * Hits, misses and evictions are counted, and {@link #report()} sums them
+ * up when the app exits, to see whether the budgets fit how it's used.
+ * 
+ * Only used from the JavaFX thread.
+ * 
+ * @author Photos Team
+ */
+public class ThumbnailCache {
+    /** Room for about 1400 thumbnails of 150x150. */
+    private static final long MAX_BYTES = 128L * 1024 * 1024;
+    /** Room for about 250 zoom tiles. */
+    private static final long TILE_BYTES = 64L * 1024 * 1024;
+    
+    private static final ThumbnailCache SHARED = new ThumbnailCache(MAX_BYTES);
+    private static final ThumbnailCache TILES = new ThumbnailCache(TILE_BYTES);
+    
+    private final long maxBytes;
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    
+    private static class Entry {
+        final Image image;
+        final long bytes;
+        
+        Entry(Image image, long bytes) {
+            this.image = image;
+            this.bytes = bytes;
+        }
+    }
+    
+    ThumbnailCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * Returns the cache every screen shares.
+     */
+    static ThumbnailCache shared() {
+        return SHARED;
+    }
+    
+    /**
+     * Returns the cache for the tiles the photo view zooms with, shared by 
+     * every photo.
+     */
+    static ThumbnailCache tiles() {
+        return TILES;
+    }
+    
+    /**
+     * Sums up how both caches did this run.
+     * 
+     * @return one line with each cache's size, hits, misses and evictions
+     */
+    public static String report() {
+        return "thumbnails " + SHARED + ", tiles " + TILES;
+    }
+    
+    /**
+     * Returns the cached image for a key, or null, counting a hit or a miss.
+     */
+    Image get(Object key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.image;
+    }
+    
+    /**
+     * Returns the cached image for a key, or null, without counting it as a
+     * hit or a miss. For looking around for a stand-in image, which isn't
+     * what the hit rate is about.
+     */
+    Image peek(Object key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.image;
+    }
+    
+    /**
+     * Caches an image, dropping the least recently used ones if that goes
+     * over the budget.
+     * 
+     * @param key what the image is for
+     * @param image the image, possibly still loading
+     * @param bytes about how many bytes its pixels take
+     */
+    void put(Object key, Image image, long bytes) {
+        Entry old = entries.put(key, new Entry(image, bytes));
+        if (old != null) {
+            this.bytes -= old.bytes;
+        }
+        this.bytes += bytes;
+        Iterator<Map.Entry<Object, Entry>> oldest = entries.entrySet().iterator();
+        while (this.bytes > maxBytes && oldest.hasNext()) {
+            this.bytes -= oldest.next().getValue().bytes;
+            oldest.remove();
+            evictions++;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        long lookups = hits + misses;
+        return "ThumbnailCache[" + entries.size() + " images, " + bytes / 1024 + " KB, "
+            + hits + " hits, " + misses + " misses"
+            + (lookups == 0 ? "" : " (" + hits * 100 / lookups + "% hit)") + ", " + evictions + " evicted]";
+    }
+}
+
@@ -0,0 +1,164 @@
+package photos.controller;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Decodes thumbnails on a few background threads, visible ones first.
+ * Requests wait in two queues, one for thumbnails on screen and one for the
+ * rest, and a request moves between them as the user scrolls. A request for
+ * a thumbnail that's gone from the screen is cancelled and never decoded.
+ * 
+ * Finished thumbnails are handed back to the JavaFX thread in batches: one
+ * {@link Platform#runLater} call delivers everything that finished since
+ * the last one, instead of one call per image.
+ * 
+ * @author Photos Team
+ */
+class ThumbnailLoader {
+    /** Leave a core for the JavaFX thread; more threads mostly fight over the disk. */
+    private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    
+    private static final ThumbnailLoader SHARED = new ThumbnailLoader(THREADS);
+    
+    private final Object lock = new Object();
+    /** Waiting requests, oldest first. Guarded by the lock. */
+    private final LinkedHashSet<Request> visible = new LinkedHashSet<>();
+    private final LinkedHashSet<Request> hidden = new LinkedHashSet<>();
+    /** Finished requests waiting for the JavaFX thread. */
+    private final ConcurrentLinkedQueue<Runnable> finished = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean deliveryQueued = new AtomicBoolean();
+    
+    /**
+     * A thumbnail waiting to be decoded.
+     */
+    class Request {
+        private final Supplier<Image> decode;
+        private final Consumer<Image> onLoaded;
+        /** Guarded by the lock. */
+        private boolean onScreen;
+        private volatile boolean cancelled;
+        
+        private Request(Supplier<Image> decode, Consumer<Image> onLoaded) {
+            this.decode = decode;
+            this.onLoaded = onLoaded;
+        }
+        
+        /**
+         * Moves the request ahead of or behind the ones that are off screen.
+         */
+        void setVisible(boolean onScreen) {
+            synchronized (lock) {
+                if (this.onScreen == onScreen) {
+                    return;
+                }
+                this.onScreen = onScreen;
+                // Only move it if it's still waiting
+                if ((onScreen ? hidden : visible).remove(this)) {
+                    (onScreen ? visible : hidden).add(this);
+                    lock.notify();
+                }
+            }
+        }
+        
+        /**
+         * Drops the request. If it's already being decoded, the image is
+         * thrown away.
+         */
+        void cancel() {
+            cancelled = true;
+            synchronized (lock) {
+                visible.remove(this);
+                hidden.remove(this);
+            }
+        }
+    }
+    
+    private ThumbnailLoader(int threads) {
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(this::work, "photos-thumbnail-" + (i + 1));
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            thread.start();
+        }
+    }
+    
+    /**
+     * Returns the loader every screen shares.
+     */
+    static ThumbnailLoader shared() {
+        return SHARED;
+    }
+    
+    /**
+     * Queues a thumbnail behind the visible ones.
+     * 
+     * @param decode makes the image; runs on a loader thread
+     * @param onLoaded gets the image on the JavaFX thread, unless the
+     *                 request was cancelled first
+     * @return the request, to reprioritize or cancel
+     */
+    Request submit(Supplier<Image> decode, Consumer<Image> onLoaded) {
+        Request request = new Request(decode, onLoaded);
+        synchronized (lock) {
+            hidden.add(request);
+            lock.notify();
+        }
+        return request;
+    }
+    
+    private void work() {
+        while (true) {
+            Request request;
+            synchronized (lock) {
+                while (visible.isEmpty() && hidden.isEmpty()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                Iterator<Request> next = (visible.isEmpty() ? hidden : visible).iterator();
+                request = next.next();
+                next.remove();
+            }
+            Image image;
+            try {
+                image = request.decode.get();
+            } catch (RuntimeException e) {
+                System.err.println("Failed to load thumbnail: " + e.getMessage());
+                continue;
+            }
+            if (!request.cancelled) {
+                finished.add(() -> {
+                    if (!request.cancelled) {
+                        request.onLoaded.accept(image);
+                    }
+                });
+                if (deliveryQueued.compareAndSet(false, true)) {
+                    Platform.runLater(this::deliver);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Hands every finished thumbnail to its screen. Runs on the JavaFX thread.
+     */
+    private void deliver() {
+        // Cleared first, so anything finishing from here on queues another delivery
+        deliveryQueued.set(false);
+        Runnable next;
+        while ((next = finished.poll()) != null) {
+            next.run();
+        }
+    }
+}
+
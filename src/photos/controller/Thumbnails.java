@@ -0,0 +1,243 @@
+package photos.controller;
+
+import javafx.scene.Node;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.stage.Screen;
+import photos.model.Photo;
+import photos.model.ThumbnailStore;
+
+import java.io.File;
+
+/**
+ * Loads the thumbnails the album and search screens show. Thumbnails come in
+ * a few fixed sizes, and a tile shows the smallest one at least as big as
+ * the tile on screen, so one size serves a range of grid densities and the
+ * image view scales it the rest of the way.
+ * 
+ * A thumbnail already in memory (see {@link ThumbnailCache}) is shown right
+ * away. Anything else is decoded by the {@link ThumbnailLoader} in the
+ * background: from the {@link ThumbnailStore} if it's saved there, or else
+ * scaled down from a bigger size that's saved. Failing both, the photo is
+ * decoded once at the biggest size the grid can show and the size wanted is
+ * scaled down from that, and both go to the store, so zooming the grid in
+ * later never reads the photo again. Until it arrives the tile shows
+ * another size that's in memory, or its empty frame.
+ * 
+ * @author Photos Team
+ */
+class Thumbnails {
+    /** Where a tile keeps the request for its thumbnail while it's loading. */
+    private static final String REQUEST = Thumbnails.class.getName() + ".request";
+    /** The sizes thumbnails are made in, in pixels wide or high, smallest first. */
+    private static final int[] LEVELS = {64, 150, 320, 1024};
+    
+    private Thumbnails() {
+    }
+    
+    /**
+     * Shows a photo's thumbnail in an image view, now or once it's decoded.
+     * The request stays on the tile, so it can be put ahead of others with 
+     * {@link #setVisible} or dropped with {@link #cancel}.
+     * 
+     * @param store where saved thumbnails are kept
+     * @param photo the photo
+     * @param size the most pixels wide or high the thumbnail is shown at
+     * @param view where to show it
+     * @param tile the tile the view is in
+     */
+    static void show(ThumbnailStore store, Photo photo, int size, ImageView view, Node tile) {
+        // Runs for every tile scrolled into view, so the file is only looked
+        // at once here, and the other sizes' keys are made from this one
+        File file = new File(photo.getFilePath());
+        int level = level(size);
+        ThumbnailStore.Key key = store.key(file, level);
+        if (!key.hasSource()) {
+            return;
+        }
+        ThumbnailCache cache = ThumbnailCache.shared();
+        Image cached = cache.get(key);
+        if (cached != null) {
+            view.setImage(cached);
+            return;
+        }
+        
+        // A bigger size in memory just gets scaled down. A smaller one is 
+        // shown blurry until the right size loads
+        for (int other : nearest(level)) {
+            Image image = cache.peek(key.sized(other));
+            if (image != null) {
+                view.setImage(image);
+                if (other > level) {
+                    return;
+                }
+                break;
+            }
+        }
+        
+        int largest = Math.max(level, level(PhotoGrid.MAX_TILE_SIZE));
+        ThumbnailLoader.Request request = ThumbnailLoader.shared().submit(
+            () -> decode(store, key, file, level, largest),
+            image -> {
+                tile.getProperties().remove(REQUEST);
+                if (!image.isError()) {
+                    cache.put(key, image, 4L * (long) image.getWidth() * (long) image.getHeight());
+                    view.setImage(image);
+                }
+            });
+        tile.getProperties().put(REQUEST, request);
+    }
+    
+    /**
+     * Moves a tile's thumbnail ahead of or behind the others still loading, 
+     * for tiles that are on screen or just off it.
+     * 
+     * @param tile the tile
+     * @param visible true if the user can see the tile
+     */
+    static void setVisible(Node tile, boolean visible) {
+        Object request = tile.getProperties().get(REQUEST);
+        if (request != null) {
+            ((ThumbnailLoader.Request) request).setVisible(visible);
+        }
+    }
+    
+    /**
+     * Drops a tile's thumbnail if it's still loading.
+     * 
+     * @param tile the tile
+     */
+    static void cancel(Node tile) {
+        Object request = tile.getProperties().remove(REQUEST);
+        if (request != null) {
+            ((ThumbnailLoader.Request) request).cancel();
+        }
+    }
+    
+    /**
+     * Returns the size of thumbnail to show at some size on screen, allowing 
+     * for screens that draw more than one pixel per point.
+     */
+    private static int level(int size) {
+        double pixels = size * Screen.getPrimary().getOutputScaleX();
+        for (int level : LEVELS) {
+            if (level >= pixels) {
+                return level;
+            }
+        }
+        return LEVELS[LEVELS.length - 1];
+    }
+    
+    /**
+     * Returns the other sizes, bigger ones first starting with the nearest, 
+     * then smaller ones starting with the nearest.
+     */
+    private static int[] nearest(int level) {
+        int[] others = new int[LEVELS.length - 1];
+        int count = 0;
+        for (int other : LEVELS) {
+            if (other > level) {
+                others[count++] = other;
+            }
+        }
+        for (int i = LEVELS.length - 1; i >= 0; i--) {
+            if (LEVELS[i] < level) {
+                others[count++] = LEVELS[i];
+            }
+        }
+        return others;
+    }
+    
+    /**
+     * Makes a thumbnail on a loader thread: from the store if it's there, 
+     * else from the nearest bigger size in the store, else from the photo 
+     * decoded at the largest size.
+     */
+    private static Image decode(ThumbnailStore store, ThumbnailStore.Key key, File file, int size, int largest) {
+        File saved = store.find(key);
+        if (saved != null) {
+            Image image = new Image(saved.toURI().toString(), size, size, true, true, false);
+            if (!image.isError()) {
+                return image;
+            }
+            // Made again below
+            store.invalidate(key);
+        }
+        
+        for (int bigger : LEVELS) {
+            File from = bigger > size ? store.find(key.sized(bigger)) : null;
+            if (from != null) {
+                Image image = new Image(from.toURI().toString(), size, size, true, true, false);
+                if (!image.isError()) {
+                    save(store, key, image);
+                    return image;
+                }
+            }
+        }
+        
+        Image image = new Image(file.toURI().toString(), largest, largest, true, true, false);
+        if (image.isError() || image.getPixelReader() == null) {
+            return image;
+        }
+        int[] argb = save(store, key.sized(largest), image);
+        if (size >= largest) {
+            return image;
+        }
+        Image small = scaleDown(argb, (int) image.getWidth(), (int) image.getHeight(), size);
+        save(store, key, small);
+        return small;
+    }
+    
+    /**
+     * Hands an image's pixels to the store to save in the background.
+     */
+    private static int[] save(ThumbnailStore store, ThumbnailStore.Key key, Image image) {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        int[] argb = new int[width * height];
+        image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), argb, 0, width);
+        store.put(key, argb, width, height);
+        return argb;
+    }
+    
+    /**
+     * Scales pixels down to fit in a square of some size, each new pixel
+     * the average of the ones it covers.
+     */
+    private static Image scaleDown(int[] argb, int width, int height, int size) {
+        double scale = Math.min(1, (double) size / Math.max(width, height));
+        int newWidth = Math.max(1, (int) Math.round(width * scale));
+        int newHeight = Math.max(1, (int) Math.round(height * scale));
+        int[] scaled = new int[newWidth * newHeight];
+        for (int y = 0; y < newHeight; y++) {
+            int top = y * height / newHeight;
+            int bottom = Math.max(top + 1, (y + 1) * height / newHeight);
+            for (int x = 0; x < newWidth; x++) {
+                int left = x * width / newWidth;
+                int right = Math.max(left + 1, (x + 1) * width / newWidth);
+                long a = 0;
+                long r = 0;
+                long g = 0;
+                long b = 0;
+                for (int row = top; row < bottom; row++) {
+                    for (int column = left; column < right; column++) {
+                        int pixel = argb[row * width + column];
+                        a += pixel >>> 24;
+                        r += (pixel >> 16) & 0xff;
+                        g += (pixel >> 8) & 0xff;
+                        b += pixel & 0xff;
+                    }
+                }
+                long count = (long) (bottom - top) * (right - left);
+                scaled[y * newWidth + x] = (int) (a / count) << 24 | (int) (r / count) << 16
+                    | (int) (g / count) << 8 | (int) (b / count);
+            }
+        }
+        WritableImage image = new WritableImage(newWidth, newHeight);
+        image.getPixelWriter().setPixels(0, 0, newWidth, newHeight, PixelFormat.getIntArgbInstance(), scaled, 0, newWidth);
+        return image;
+    }
+}
+
@@ -249,11 +249,8 @@ public class UserAlbumsController {
      */
     @FXML
     private void handleLogout() {
-        try {
-            photoApp.save();
-        } catch (IOException e) {
-            showAlert(Alert.AlertType.ERROR, "Error", "Failed to save data.");
-        }
+        // Changes are already being saved in the background
+        photoApp.releaseUser(user.getUsername());
         
         // Navigate back to login screen
         try {
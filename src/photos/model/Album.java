@@ -3,7 +3,10 @@ package photos.model;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Album class. Just a collection of photos with a name. Can calculate 
@@ -16,6 +19,7 @@ public class Album implements Serializable {
     
     private String name;
     private List<Photo> photos;
+    private transient User owner;
     
     /**
      * Creates a new album with a name.
@@ -25,6 +29,16 @@ public class Album implements Serializable {
         this.photos = new ArrayList<>();
     }
     
+    /**
+     * Sets the user this album belongs to. Its photos get the same owner.
+     */
+    void setOwner(User owner) {
+        this.owner = owner;
+        for (Photo photo : photos) {
+            photo.setOwner(owner);
+        }
+    }
+    
     /**
      * Returns the album name.
      * 
@@ -40,7 +54,11 @@ public class Album implements Serializable {
      * @param name the new name for the album
      */
     public void setName(String name) {
+        String oldName = this.name;
         this.name = name;
+        if (owner != null) {
+            owner.fire(l -> l.albumRenamed(owner, this, oldName));
+        }
     }
     
     /**
@@ -62,7 +80,20 @@ public class Album implements Serializable {
         if (photos.contains(photo)) {
             return false;
         }
-        return photos.add(photo);
+        appendPhoto(photo);
+        return true;
+    }
+    
+    /**
+     * Adds a photo without checking whether it's already in the album. For 
+     * callers that keep track of that themselves.
+     */
+    void appendPhoto(Photo photo) {
+        photos.add(photo);
+        if (owner != null) {
+            photo.setOwner(owner);
+            owner.fire(l -> l.photoAdded(owner, this, photo));
+        }
     }
     
     /**
@@ -72,7 +103,54 @@ public class Album implements Serializable {
      * @return true if the photo was removed, false if it wasn't in the album
      */
     public boolean removePhoto(Photo photo) {
-        return photos.remove(photo);
+        if (!photos.remove(photo)) {
+            return false;
+        }
+        if (owner != null) {
+            owner.fire(l -> l.photoRemoved(owner, this, photo));
+        }
+        return true;
+    }
+    
+    /**
+     * Adds a batch of photos, skipping any that are already in the album.
+     * Faster than calling addPhoto for each one on big albums, since the
+     * duplicate check uses a set instead of searching the list every time.
+     * 
+     * @param toAdd the photos to add
+     * @return how many photos were added
+     */
+    public int addPhotos(Collection<Photo> toAdd) {
+        Set<Photo> present = new HashSet<>(photos);
+        int added = 0;
+        for (Photo photo : toAdd) {
+            if (present.add(photo)) {
+                appendPhoto(photo);
+                added++;
+            }
+        }
+        return added;
+    }
+    
+    /**
+     * Removes a batch of photos in one pass over the album.
+     * 
+     * @param toRemove the photos to remove
+     * @return how many photos were removed
+     */
+    public int removePhotos(Collection<Photo> toRemove) {
+        if (toRemove.isEmpty()) {
+            return 0;
+        }
+        Set<Photo> remove = new HashSet<>(toRemove);
+        List<Photo> removed = new ArrayList<>();
+        photos.removeIf(photo -> remove.contains(photo) && removed.add(photo));
+        if (owner != null) {
+            for (Photo photo : removed) {
+                owner.fire(l -> l.photoRemoved(owner, this, photo));
+            }
+        }
+        return removed.size();
     }
     
     /**
@@ -0,0 +1,146 @@
+package photos.model;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread that saves changes shortly after they happen. A burst of
+ * edits only causes one save: the save runs once nothing has changed for a
+ * short idle delay, or after a maximum delay if edits keep coming. Anything
+ * else that touches the save files also runs on this thread, so file access
+ * never overlaps.
+ * 
+ * @author Photos Team
+ */
+class AutoSaver {
+    private final ScheduledExecutorService executor;
+    private final SaveTask saveTask;
+    private final long idleDelay;
+    private final long maxDelay;
+    
+    /** Guarded by this. */
+    private ScheduledFuture<?> scheduled;
+    private long firstChange;
+    private long lastChange;
+    
+    /**
+     * Something that saves and can fail with an IOException.
+     */
+    @FunctionalInterface
+    interface SaveTask {
+        void run() throws IOException;
+    }
+    
+    /**
+     * Creates an autosaver.
+     * 
+     * @param saveTask what to run to save everything
+     * @param idleDelay how long things have to stay unchanged before saving, in ms
+     * @param maxDelay the longest a change can wait to be saved, in ms
+     */
+    AutoSaver(SaveTask saveTask, long idleDelay, long maxDelay) {
+        this.saveTask = saveTask;
+        this.idleDelay = idleDelay;
+        this.maxDelay = maxDelay;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "photos-autosave");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Notes that something changed. Cheap enough to call on every edit.
+     */
+    synchronized void markDirty() {
+        long now = System.currentTimeMillis();
+        lastChange = now;
+        if (scheduled == null) {
+            firstChange = now;
+            scheduled = executor.schedule(this::tick, idleDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Runs when a scheduled save is due. Pushes itself back if edits are still
+     * coming in and the maximum delay hasn't passed yet.
+     */
+    private void tick() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long wait = Math.min(lastChange + idleDelay, firstChange + maxDelay) - now;
+            if (wait > 0) {
+                scheduled = executor.schedule(this::tick, wait, TimeUnit.MILLISECONDS);
+                return;
+            }
+            scheduled = null;
+        }
+        try {
+            saveTask.run();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Autosave failed, will retry: " + e.getMessage());
+            markDirty();
+        }
+    }
+    
+    /**
+     * Queues a task to run on the save thread without waiting for it.
+     */
+    void submit(SaveTask task) {
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Background save failed: " + e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Runs a task on the save thread and waits for its result. Anything queued
+     * before it finishes first.
+     */
+    <T> T call(Callable<T> task) throws IOException {
+        try {
+            return executor.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+    
+    /**
+     * Saves everything right away and waits for it to finish.
+     */
+    void saveNow() throws IOException {
+        call(() -> {
+            saveTask.run();
+            return null;
+        });
+    }
+    
+    /**
+     * Saves everything one last time and stops the save thread.
+     */
+    void shutdown() throws IOException {
+        if (executor.isShutdown()) {
+            return;
+        }
+        try {
+            saveNow();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
+
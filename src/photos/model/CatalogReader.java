@@ -0,0 +1,175 @@
+package photos.model;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a user back from the binary catalog format written by
+ * {@link CatalogWriter}. Reads straight through the stream once, building
+ * the string and photo tables as it goes. Photos are rebuilt from the saved
+ * values, so the image files are never touched.
+ * 
+ * @author Photos Team
+ */
+class CatalogReader {
+    private final DataInputStream in;
+    private final long version;
+    private final long generation;
+    private final List<String> strings = new ArrayList<>();
+    private final List<Photo> photos = new ArrayList<>();
+    private long lastDate;
+    
+    /**
+     * Opens a catalog and reads its header.
+     * 
+     * @param stream the stream to read from, positioned at the magic number
+     * @throws IOException if the stream isn't a catalog or is a newer version
+     */
+    CatalogReader(InputStream stream) throws IOException {
+        this.in = new DataInputStream(stream instanceof BufferedInputStream
+            ? stream : new BufferedInputStream(stream, 1 << 16));
+        if (in.readInt() != CatalogWriter.MAGIC) {
+            throw new IOException("Not a photo catalog");
+        }
+        this.version = readVarLong();
+        if (version > CatalogWriter.VERSION) {
+            throw new IOException("Catalog version " + version + " is newer than this app");
+        }
+        this.generation = readVarLong();
+    }
+    
+    /**
+     * Checks whether a stream starts with the catalog magic number, without
+     * using up any bytes.
+     * 
+     * @param stream a stream that supports mark and reset
+     * @return true if the stream holds a catalog
+     */
+    static boolean isCatalog(InputStream stream) throws IOException {
+        stream.mark(4);
+        try {
+            return new DataInputStream(stream).readInt() == CatalogWriter.MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            stream.reset();
+        }
+    }
+    
+    /**
+     * Returns the shard generation stored in the header.
+     */
+    long getGeneration() {
+        return generation;
+    }
+    
+    /**
+     * Reads a user along with all of their albums and photos.
+     * 
+     * @return the user
+     */
+    User readUser() throws IOException {
+        String username = readString();
+        String password = in.readBoolean() ? readString() : null;
+        User user = new User(username, password);
+        
+        int albumCount = readCount();
+        for (int i = 0; i < albumCount; i++) {
+            Album album = new Album(readString());
+            int photoCount = readCount();
+            // Straight into the list - addPhoto's duplicate check is O(n) per photo
+            List<Photo> albumPhotos = album.getPhotos();
+            for (int j = 0; j < photoCount; j++) {
+                albumPhotos.add(readPhoto());
+            }
+            user.addAlbum(album);
+        }
+        return user;
+    }
+    
+    private Photo readPhoto() throws IOException {
+        int ref = readCount();
+        if (ref > 0) {
+            if (ref > photos.size()) {
+                throw new IOException("Bad photo reference " + ref);
+            }
+            return photos.get(ref - 1);
+        }
+        
+        String path = readShared() + readString();
+        String caption = readString();
+        long zigzag = readVarLong();
+        lastDate += (zigzag >>> 1) ^ -(zigzag & 1);
+        LocalDateTime date = LocalDateTime.ofInstant(Instant.ofEpochMilli(lastDate), ZoneOffset.UTC);
+        
+        Photo photo = new Photo(path, caption, date);
+        int tagCount = readCount();
+        for (int i = 0; i < tagCount; i++) {
+            photo.getTags().add(new Tag(readShared(), readShared()));
+        }
+        if (version >= 2) {
+            String format = readShared();
+            int width = readCount();
+            int height = readCount();
+            int orientation = readCount();
+            photo.setImageInfo(format.isEmpty() ? null : format, width, height, orientation);
+        }
+        photos.add(photo);
+        return photo;
+    }
+    
+    /**
+     * Reads a string that went through the string table.
+     */
+    private String readShared() throws IOException {
+        int ref = readCount();
+        if (ref == 0) {
+            String value = readString();
+            strings.add(value);
+            return value;
+        }
+        if (ref > strings.size()) {
+            throw new IOException("Bad string reference " + ref);
+        }
+        return strings.get(ref - 1);
+    }
+    
+    private String readString() throws IOException {
+        byte[] bytes = new byte[readCount()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Reads a varint that has to fit in an int, like a length or an id.
+     */
+    private int readCount() throws IOException {
+        long value = readVarLong();
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Count out of range: " + value);
+        }
+        return (int) value;
+    }
+    
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}
+
@@ -0,0 +1,149 @@
+package photos.model;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Writes a user to the compact binary catalog format that {@link CatalogReader}
+ * reads back. Used for user shards instead of Java serialization, which writes
+ * class descriptors and repeats every tag name and folder path in full.
+ * 
+ * Layout: magic, format version, shard generation, then the user. Numbers are
+ * varints. Tag names, tag values and the folder part of file paths go through
+ * a string table: the first time a string shows up it's written out and gets
+ * the next id, after that only the id is written. Photos that are in more than
+ * one album are written once and referred to by id after that. Dates are
+ * stored as the difference from the previous photo's date. Since version 2,
+ * each photo also has its image format, width, height and orientation.
+ * 
+ * @author Photos Team
+ */
+class CatalogWriter implements Closeable {
+    static final int MAGIC = 0x50484331;
+    static final int VERSION = 2;
+    
+    private final DataOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<Photo, Integer> photos = new IdentityHashMap<>();
+    private long lastDate;
+    
+    /**
+     * Starts a catalog on the given stream and writes its header.
+     * 
+     * @param stream where to write the catalog
+     * @param generation the shard generation to store in the header
+     */
+    CatalogWriter(OutputStream stream, long generation) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        out.writeInt(MAGIC);
+        writeVarLong(VERSION);
+        writeVarLong(generation);
+    }
+    
+    /**
+     * Writes a user along with all of their albums and photos.
+     * 
+     * @param user the user to write
+     */
+    void writeUser(User user) throws IOException {
+        writeString(user.getUsername());
+        out.writeBoolean(user.getPassword() != null);
+        if (user.getPassword() != null) {
+            writeString(user.getPassword());
+        }
+        writeVarLong(user.getAlbums().size());
+        for (Album album : user.getAlbums()) {
+            writeString(album.getName());
+            writeVarLong(album.getPhotos().size());
+            for (Photo photo : album.getPhotos()) {
+                writePhoto(photo);
+            }
+        }
+    }
+    
+    /**
+     * Writes a photo, or just its id if it was already written for another album.
+     */
+    private void writePhoto(Photo photo) throws IOException {
+        Integer id = photos.get(photo);
+        if (id != null) {
+            writeVarLong(id + 1);
+            return;
+        }
+        photos.put(photo, photos.size());
+        writeVarLong(0);
+        
+        String path = photo.getFilePath();
+        int split = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1;
+        writeShared(path.substring(0, split));
+        writeString(path.substring(split));
+        writeString(photo.getCaption());
+        
+        long date = photo.getDateTaken().toInstant(ZoneOffset.UTC).toEpochMilli();
+        long delta = date - lastDate;
+        writeVarLong((delta << 1) ^ (delta >> 63));
+        lastDate = date;
+        
+        writeVarLong(photo.getTags().size());
+        for (Tag tag : photo.getTags()) {
+            writeShared(tag.getName());
+            writeShared(tag.getValue());
+        }
+        
+        writeShared(photo.getFormat() == null ? "" : photo.getFormat());
+        writeVarLong(photo.getWidth());
+        writeVarLong(photo.getHeight());
+        writeVarLong(photo.getStoredOrientation());
+    }
+    
+    /**
+     * Writes a string through the string table.
+     */
+    private void writeShared(String value) throws IOException {
+        Integer id = strings.get(value);
+        if (id != null) {
+            writeVarLong(id + 1);
+            return;
+        }
+        strings.put(value, strings.size());
+        writeVarLong(0);
+        writeString(value);
+    }
+    
+    /**
+     * Writes a string as its UTF-8 length followed by the bytes.
+     */
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Writes a non-negative number 7 bits at a time, low bits first.
+     */
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+    
+    /**
+     * Flushes and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
+
@@ -0,0 +1,654 @@
+package photos.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only log of changes to a user's albums and photos. Every change is
+ * turned into one small record, so captioning a photo costs a few bytes 
+ * instead of rewriting the user's shard. Records are buffered in memory and 
+ * added to the end of the file by the autosaver thread. UserStore folds the
+ * journal into a new shard once it gets big, and replays whatever is left in
+ * it when the user is loaded.
+ * 
+ * The file starts with a header holding the snapshot generation it belongs to.
+ * If that doesn't match the snapshot, the journal was already folded in and
+ * gets thrown away. Records carry the username, so the single journal that 
+ * used to sit next to users.dat can still be replayed when migrating.
+ * Strings are written as a length and UTF-8 bytes, so there's no limit on how
+ * long a caption can be. Journals from before that are told apart by their 
+ * header and are still replayed.
+ * 
+ * @author Photos Team
+ */
+class ChangeJournal implements ModelListener {
+    private static final int MAGIC = 0x50484a32;
+    /** Journals from before strings were stored as length and bytes. */
+    private static final int OLD_MAGIC = 0x50484a31;
+    private static final int HEADER_SIZE = 12;
+    
+    private static final byte USER_ADD = 1;
+    private static final byte USER_REMOVE = 2;
+    private static final byte TAG_TYPE_ADD = 3;
+    private static final byte ALBUM_ADD = 4;
+    private static final byte ALBUM_REMOVE = 5;
+    private static final byte ALBUM_RENAME = 6;
+    private static final byte PHOTO_ADD = 7;
+    private static final byte PHOTO_REMOVE = 8;
+    private static final byte CAPTION = 9;
+    private static final byte TAG_ADD = 10;
+    private static final byte TAG_REMOVE = 11;
+    private static final byte PATH_CHANGE = 12;
+    private static final byte DATE_CHANGE = 13;
+    private static final byte IMAGE_INFO = 14;
+    
+    private final File file;
+    /** Only touched by the thread doing the saving. */
+    private FileOutputStream out;
+    private long committed;
+    /** Records that haven't been written to the file yet. Guarded by this. */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private Runnable onAppend;
+    
+    /**
+     * Creates a journal backed by the given file. Nothing is written until
+     * {@link #open(long, long)} is called.
+     */
+    ChangeJournal(File file) {
+        this.file = file;
+    }
+    
+    /**
+     * Sets something to run after each new record, like waking up the autosaver.
+     */
+    void setOnAppend(Runnable onAppend) {
+        this.onAppend = onAppend;
+    }
+    
+    /**
+     * Opens the journal for appending. Anything past validLength (a record cut
+     * off by a crash) is chopped off first. If the file is missing or belongs
+     * to another generation it's started over.
+     * 
+     * @param generation the generation of the snapshot this journal follows
+     * @param validLength how many bytes of the existing file replayed cleanly,
+     *                    or -1 if it couldn't be replayed
+     */
+    void open(long generation, long validLength) throws IOException {
+        if (validLength < HEADER_SIZE) {
+            reset(generation);
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(validLength);
+        }
+        out = new FileOutputStream(file, true);
+        committed = validLength;
+    }
+    
+    /**
+     * Empties the journal file and starts it over for a new snapshot generation. 
+     * Records that are still pending stay pending, since they aren't part of 
+     * the snapshot yet.
+     * 
+     * @param generation the generation of the snapshot just written
+     */
+    void reset(long generation) throws IOException {
+        close();
+        out = new FileOutputStream(file, false);
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeLong(generation);
+        header.flush();
+        committed = HEADER_SIZE;
+    }
+    
+    /**
+     * Returns how many bytes of the journal are on disk.
+     */
+    long size() {
+        return committed;
+    }
+    
+    /**
+     * Returns true if there are records that haven't been written to the file.
+     */
+    synchronized boolean hasPending() {
+        return pending.size() > 0;
+    }
+    
+    /**
+     * Writes pending records to the end of the file. If the write fails, the 
+     * file is cut back to where it was and the records stay pending for the 
+     * next try.
+     */
+    void flush() throws IOException {
+        byte[] data;
+        synchronized (this) {
+            if (pending.size() == 0 || out == null) {
+                return;
+            }
+            data = pending.toByteArray();
+            pending.reset();
+        }
+        try {
+            out.write(data);
+            out.flush();
+            committed += data.length;
+        } catch (IOException e) {
+            synchronized (this) {
+                byte[] newer = pending.toByteArray();
+                pending.reset();
+                pending.writeBytes(data);
+                pending.writeBytes(newer);
+            }
+            try {
+                out.getChannel().truncate(committed);
+            } catch (IOException ignored) {
+                // Replay stops at the torn record anyway
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Closes the journal file. Pending records are kept.
+     */
+    void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+    
+    @Override
+    public void albumAdded(User user, Album album) {
+        append(out -> writeAlbum(out, user, album));
+    }
+    
+    @Override
+    public void albumRemoved(User user, Album album) {
+        append(out -> {
+            out.writeByte(ALBUM_REMOVE);
+            writeString(out, user.getUsername());
+            writeString(out, album.getName());
+        });
+    }
+    
+    @Override
+    public void albumRenamed(User user, Album album, String oldName) {
+        append(out -> {
+            out.writeByte(ALBUM_RENAME);
+            writeString(out, user.getUsername());
+            writeString(out, oldName);
+            writeString(out, album.getName());
+        });
+    }
+    
+    @Override
+    public void photoAdded(User user, Album album, Photo photo) {
+        append(out -> writePhoto(out, user, album, photo));
+    }
+    
+    @Override
+    public void photoRemoved(User user, Album album, Photo photo) {
+        append(out -> {
+            out.writeByte(PHOTO_REMOVE);
+            writeString(out, user.getUsername());
+            writeString(out, album.getName());
+            writeString(out, photo.getFilePath());
+        });
+    }
+    
+    @Override
+    public void captionChanged(User user, Photo photo) {
+        append(out -> {
+            out.writeByte(CAPTION);
+            writeString(out, user.getUsername());
+            writeString(out, photo.getFilePath());
+            writeString(out, photo.getCaption());
+        });
+    }
+    
+    @Override
+    public void tagAdded(User user, Photo photo, Tag tag) {
+        append(out -> writeTagChange(out, TAG_ADD, user, photo, tag));
+    }
+    
+    @Override
+    public void tagRemoved(User user, Photo photo, Tag tag) {
+        append(out -> writeTagChange(out, TAG_REMOVE, user, photo, tag));
+    }
+    
+    @Override
+    public void filePathChanged(User user, Photo photo, String oldPath) {
+        append(out -> {
+            out.writeByte(PATH_CHANGE);
+            writeString(out, user.getUsername());
+            writeString(out, oldPath);
+            writeString(out, photo.getFilePath());
+        });
+    }
+    
+    @Override
+    public void dateChanged(User user, Photo photo) {
+        append(out -> {
+            out.writeByte(DATE_CHANGE);
+            writeString(out, user.getUsername());
+            writeString(out, photo.getFilePath());
+            out.writeLong(photo.getDateTaken().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        });
+    }
+    
+    @Override
+    public void imageInfoChanged(User user, Photo photo) {
+        append(out -> writeImageInfo(out, user, photo));
+    }
+    
+    /**
+     * Adds one record to the pending buffer. This is all that happens on the 
+     * thread making the change; the autosaver writes it to disk later.
+     */
+    private void append(Record record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            record.write(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            // Writing to memory doesn't throw
+            throw new UncheckedIOException(e);
+        }
+        synchronized (this) {
+            pending.writeBytes(bytes.toByteArray());
+        }
+        if (onAppend != null) {
+            onAppend.run();
+        }
+    }
+    
+    private static void writeAlbum(DataOutputStream out, User user, Album album) throws IOException {
+        out.writeByte(ALBUM_ADD);
+        writeString(out, user.getUsername());
+        writeString(out, album.getName());
+        for (Photo photo : album.getPhotos()) {
+            writePhoto(out, user, album, photo);
+        }
+    }
+    
+    private static void writePhoto(DataOutputStream out, User user, Album album, Photo photo) throws IOException {
+        out.writeByte(PHOTO_ADD);
+        writeString(out, user.getUsername());
+        writeString(out, album.getName());
+        writeString(out, photo.getFilePath());
+        writeString(out, photo.getCaption());
+        out.writeLong(photo.getDateTaken().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        out.writeInt(photo.getTags().size());
+        for (Tag tag : photo.getTags()) {
+            writeString(out, tag.getName());
+            writeString(out, tag.getValue());
+        }
+        if (photo.getFormat() != null || photo.getStoredOrientation() != 0) {
+            writeImageInfo(out, user, photo);
+        }
+    }
+    
+    private static void writeImageInfo(DataOutputStream out, User user, Photo photo) throws IOException {
+        out.writeByte(IMAGE_INFO);
+        writeString(out, user.getUsername());
+        writeString(out, photo.getFilePath());
+        writeString(out, photo.getFormat() == null ? "" : photo.getFormat());
+        out.writeInt(photo.getWidth());
+        out.writeInt(photo.getHeight());
+        out.writeByte(photo.getStoredOrientation());
+    }
+    
+    private static void writeTagChange(DataOutputStream out, byte op, User user, Photo photo, Tag tag) throws IOException {
+        out.writeByte(op);
+        writeString(out, user.getUsername());
+        writeString(out, photo.getFilePath());
+        writeString(out, tag.getName());
+        writeString(out, tag.getValue());
+    }
+    
+    /**
+     * Writes a string as its length and UTF-8 bytes. Unlike writeUTF, this
+     * takes captions and tag values of any length.
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Returns true if a journal file was written before strings were stored
+     * as length and bytes. Those can still be replayed, but new records can't
+     * be added to them.
+     * 
+     * @param file the journal file
+     * @return true if the file has the old header
+     */
+    static boolean isOldFormat(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == OLD_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Applies every complete record in a journal file to the given users. Stops 
+     * at the first record that was cut off. Returns how many bytes were good so 
+     * the caller can chop off the rest, or -1 if the file is missing or belongs 
+     * to a different generation.
+     * 
+     * @param file the journal file
+     * @param generation the generation of the snapshot that was just loaded
+     * @param users the users to apply the changes to, by username
+     * @param tagTypes the tag type list to add new tag types to
+     * @return the length of the valid part of the file, or -1
+     */
+    static long replay(File file, long generation, Map<String, User> users, List<String> tagTypes) {
+        if (!file.exists()) {
+            return -1;
+        }
+        long valid = -1;
+        try (CountingInputStream counter = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+             DataInputStream in = new DataInputStream(counter)) {
+            int magic = in.readInt();
+            if ((magic != MAGIC && magic != OLD_MAGIC) || in.readLong() != generation) {
+                return -1;
+            }
+            valid = counter.count;
+            Replayer replayer = new Replayer(users, tagTypes, magic == OLD_MAGIC, file.length());
+            while (true) {
+                int op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                replayer.apply(op, in);
+                valid = counter.count;
+            }
+        } catch (IOException e) {
+            // Truncated or garbled tail - keep what replayed cleanly
+        }
+        return valid;
+    }
+    
+    /**
+     * Applies journal records to a set of users. Keeps a path lookup per user 
+     * so replay doesn't have to search every album for each record.
+     */
+    private static class Replayer {
+        private final Map<String, User> users;
+        private final List<String> tagTypes;
+        private final Map<String, Map<String, Photo>> photosByUser = new HashMap<>();
+        private final Map<Album, Set<Photo>> albumPhotos = new IdentityHashMap<>();
+        /** True for old journals, whose strings were written with writeUTF. */
+        private final boolean oldFormat;
+        /** No string can be longer than the file it's in. */
+        private final long fileLength;
+        
+        Replayer(Map<String, User> users, List<String> tagTypes, boolean oldFormat, long fileLength) {
+            this.users = users;
+            this.tagTypes = tagTypes;
+            this.oldFormat = oldFormat;
+            this.fileLength = fileLength;
+        }
+        
+        void apply(int op, DataInputStream in) throws IOException {
+            switch (op) {
+                case USER_ADD: {
+                    String username = readString(in);
+                    String password = readNullable(in);
+                    users.putIfAbsent(username, new User(username, password));
+                    break;
+                }
+                case USER_REMOVE: {
+                    String username = readString(in);
+                    users.remove(username);
+                    photosByUser.remove(username);
+                    break;
+                }
+                case TAG_TYPE_ADD: {
+                    String tagType = readString(in);
+                    if (!tagTypes.contains(tagType)) {
+                        tagTypes.add(tagType);
+                    }
+                    break;
+                }
+                case ALBUM_ADD: {
+                    User user = users.get(readString(in));
+                    String name = readString(in);
+                    if (user != null) {
+                        user.addAlbum(new Album(name));
+                    }
+                    break;
+                }
+                case ALBUM_REMOVE: {
+                    User user = users.get(readString(in));
+                    String name = readString(in);
+                    if (user != null && user.getAlbumByName(name) != null) {
+                        user.removeAlbum(user.getAlbumByName(name));
+                    }
+                    break;
+                }
+                case ALBUM_RENAME: {
+                    User user = users.get(readString(in));
+                    String oldName = readString(in);
+                    String newName = readString(in);
+                    if (user != null && user.getAlbumByName(oldName) != null) {
+                        user.getAlbumByName(oldName).setName(newName);
+                    }
+                    break;
+                }
+                case PHOTO_ADD: {
+                    User user = users.get(readString(in));
+                    String albumName = readString(in);
+                    String path = readString(in);
+                    String caption = readString(in);
+                    LocalDateTime date = LocalDateTime.ofInstant(
+                        Instant.ofEpochMilli(in.readLong()), ZoneId.systemDefault());
+                    int tagCount = in.readInt();
+                    Tag[] tags = new Tag[tagCount];
+                    for (int i = 0; i < tagCount; i++) {
+                        tags[i] = new Tag(readString(in), readString(in));
+                    }
+                    Album album = user == null ? null : user.getAlbumByName(albumName);
+                    if (album == null) {
+                        break;
+                    }
+                    // Same file means same photo for a user, so reuse it and
+                    // bring it to the state it had when it was added
+                    Photo photo = photos(user).get(path);
+                    if (photo == null) {
+                        photo = new Photo(path, caption, date);
+                        photos(user).put(path, photo);
+                    } else {
+                        photo.setCaption(caption);
+                        photo.setDateTaken(date);
+                        photo.getTags().clear();
+                    }
+                    for (Tag tag : tags) {
+                        photo.getTags().add(tag);
+                    }
+                    if (albumPhotos(album).add(photo)) {
+                        album.appendPhoto(photo);
+                    }
+                    break;
+                }
+                case PHOTO_REMOVE: {
+                    User user = users.get(readString(in));
+                    String albumName = readString(in);
+                    String path = readString(in);
+                    Album album = user == null ? null : user.getAlbumByName(albumName);
+                    Photo photo = user == null ? null : photos(user).get(path);
+                    if (album != null && photo != null && albumPhotos(album).remove(photo)) {
+                        album.removePhoto(photo);
+                    }
+                    break;
+                }
+                case CAPTION: {
+                    User user = users.get(readString(in));
+                    String path = readString(in);
+                    String caption = readString(in);
+                    Photo photo = user == null ? null : photos(user).get(path);
+                    if (photo != null) {
+                        photo.setCaption(caption);
+                    }
+                    break;
+                }
+                case TAG_ADD:
+                case TAG_REMOVE: {
+                    User user = users.get(readString(in));
+                    String path = readString(in);
+                    Tag tag = new Tag(readString(in), readString(in));
+                    Photo photo = user == null ? null : photos(user).get(path);
+                    if (photo != null && op == TAG_ADD) {
+                        photo.addTag(tag);
+                    } else if (photo != null) {
+                        photo.removeTag(tag);
+                    }
+                    break;
+                }
+                case PATH_CHANGE: {
+                    User user = users.get(readString(in));
+                    String oldPath = readString(in);
+                    String newPath = readString(in);
+                    Photo photo = user == null ? null : photos(user).remove(oldPath);
+                    if (photo != null) {
+                        photo.setFilePath(newPath);
+                        photos(user).put(newPath, photo);
+                    }
+                    break;
+                }
+                case DATE_CHANGE: {
+                    User user = users.get(readString(in));
+                    String path = readString(in);
+                    LocalDateTime date = LocalDateTime.ofInstant(
+                        Instant.ofEpochMilli(in.readLong()), ZoneId.systemDefault());
+                    Photo photo = user == null ? null : photos(user).get(path);
+                    if (photo != null) {
+                        photo.setDateTaken(date);
+                    }
+                    break;
+                }
+                case IMAGE_INFO: {
+                    User user = users.get(readString(in));
+                    String path = readString(in);
+                    String format = readString(in);
+                    int width = in.readInt();
+                    int height = in.readInt();
+                    int orientation = in.readByte();
+                    Photo photo = user == null ? null : photos(user).get(path);
+                    if (photo != null) {
+                        photo.setImageInfo(format.isEmpty() ? null : format, width, height, orientation);
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown journal record " + op);
+            }
+        }
+        
+        private String readString(DataInputStream in) throws IOException {
+            if (oldFormat) {
+                return in.readUTF();
+            }
+            int length = in.readInt();
+            if (length < 0 || length > fileLength) {
+                throw new IOException("Bad string length " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        
+        private String readNullable(DataInputStream in) throws IOException {
+            return in.readBoolean() ? readString(in) : null;
+        }
+        
+        /**
+         * Returns the path lookup for a user, building it the first time.
+         */
+        private Map<String, Photo> photos(User user) {
+            return photosByUser.computeIfAbsent(user.getUsername(), name -> {
+                Map<String, Photo> byPath = new HashMap<>();
+                for (Album album : user.getAlbums()) {
+                    for (Photo photo : album.getPhotos()) {
+                        byPath.putIfAbsent(photo.getFilePath(), photo);
+                    }
+                }
+                return byPath;
+            });
+        }
+        
+        /**
+         * Returns the photos in an album as a set, so adding a photo doesn't
+         * have to search the album's list.
+         */
+        private Set<Photo> albumPhotos(Album album) {
+            return albumPhotos.computeIfAbsent(album, a -> new HashSet<>(a.getPhotos()));
+        }
+    }
+    
+    /**
+     * One journal record, written in a single call.
+     */
+    @FunctionalInterface
+    private interface Record {
+        void write(DataOutputStream out) throws IOException;
+    }
+    
+    /**
+     * Input stream wrapper that counts bytes read, so replay knows where the
+     * last complete record ended.
+     */
+    private static class CountingInputStream extends java.io.FilterInputStream {
+        private long count;
+        
+        CountingInputStream(java.io.InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
+
@@ -0,0 +1,219 @@
+package photos.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Counts how often each string is used and finds the most used ones that
+ * start with some text, ignoring case. Stored as a radix trie: runs of
+ * characters with no branch share one node, so a few hundred thousand values
+ * take about one node each. Every node also knows the highest count below
+ * it, which lets the top few completions be found best first without
+ * visiting the whole subtree.
+ * 
+ * Strings are stored under their lowercase form followed by a 0 character
+ * and the string itself, so values that differ only in case each get their
+ * own count.
+ * 
+ * @author Photos Team
+ */
+class CompletionTrie {
+    private final Node root = new Node("");
+    private int size;
+    
+    private static class Node {
+        String label;
+        Node[] children;
+        int childCount;
+        /** How often the string ending here is used, 0 if none does. */
+        int count;
+        /** Highest count in this node and below. */
+        int best;
+        
+        Node(String label) {
+            this.label = label;
+        }
+        
+        int find(char c) {
+            for (int i = 0; i < childCount; i++) {
+                if (children[i].label.charAt(0) == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        void addChild(Node child) {
+            if (children == null) {
+                children = new Node[2];
+            } else if (childCount == children.length) {
+                children = Arrays.copyOf(children, childCount * 2);
+            }
+            children[childCount++] = child;
+        }
+        
+        void removeChild(int index) {
+            System.arraycopy(children, index + 1, children, index, childCount - index - 1);
+            children[--childCount] = null;
+        }
+        
+        void updateBest() {
+            best = count;
+            for (int i = 0; i < childCount; i++) {
+                best = Math.max(best, children[i].best);
+            }
+        }
+    }
+    
+    /**
+     * A node to visit or a string to return, in best first order.
+     */
+    private static class Entry {
+        final Node node;
+        final String path;
+        final int score;
+        final boolean result;
+        
+        Entry(Node node, String path, int score, boolean result) {
+            this.node = node;
+            this.path = path;
+            this.score = score;
+            this.result = result;
+        }
+    }
+    
+    /**
+     * Changes how often a string is used. It's dropped once its count gets
+     * to 0.
+     * 
+     * @param value the string
+     * @param delta how much to add, negative to take away
+     */
+    void add(String value, int delta) {
+        update(root, key(value), 0, delta);
+    }
+    
+    /**
+     * Returns how many different strings have a count.
+     */
+    int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the most used strings that start with some text, ignoring case.
+     * 
+     * @param prefix the text typed so far
+     * @param limit the most strings to return
+     * @return the strings, most used first
+     */
+    List<String> top(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        String key = prefix.toLowerCase(Locale.ROOT);
+        Node node = root;
+        StringBuilder path = new StringBuilder();
+        int pos = 0;
+        while (pos < key.length()) {
+            int index = node.find(key.charAt(pos));
+            if (index < 0) {
+                return result;
+            }
+            Node child = node.children[index];
+            int match = commonPrefix(child.label, key, pos);
+            if (pos + match < key.length() && match < child.label.length()) {
+                return result;
+            }
+            path.append(child.label);
+            pos += match;
+            node = child;
+        }
+        
+        PriorityQueue<Entry> queue = new PriorityQueue<>((a, b) -> a.score != b.score
+            ? Integer.compare(b.score, a.score) : a.path.compareTo(b.path));
+        queue.add(new Entry(node, path.toString(), node.best, false));
+        while (!queue.isEmpty() && result.size() < limit) {
+            Entry entry = queue.poll();
+            if (entry.result) {
+                result.add(entry.path.substring(entry.path.indexOf('\0') + 1));
+                continue;
+            }
+            if (entry.node.count > 0) {
+                queue.add(new Entry(entry.node, entry.path, entry.node.count, true));
+            }
+            for (int i = 0; i < entry.node.childCount; i++) {
+                Node child = entry.node.children[i];
+                queue.add(new Entry(child, entry.path + child.label, child.best, false));
+            }
+        }
+        return result;
+    }
+    
+    private void update(Node node, String key, int pos, int delta) {
+        if (pos == key.length()) {
+            int before = node.count;
+            node.count = Math.max(0, node.count + delta);
+            if (before == 0 && node.count > 0) {
+                size++;
+            } else if (before > 0 && node.count == 0) {
+                size--;
+            }
+            node.updateBest();
+            return;
+        }
+        int index = node.find(key.charAt(pos));
+        if (index < 0) {
+            if (delta <= 0) {
+                return;
+            }
+            Node leaf = new Node(key.substring(pos));
+            leaf.count = delta;
+            leaf.best = delta;
+            node.addChild(leaf);
+            size++;
+            node.updateBest();
+            return;
+        }
+        Node child = node.children[index];
+        int match = commonPrefix(child.label, key, pos);
+        if (match < child.label.length()) {
+            if (delta <= 0) {
+                return;
+            }
+            // Split the child where the new key leaves its label
+            Node middle = new Node(child.label.substring(0, match));
+            child.label = child.label.substring(match);
+            middle.addChild(child);
+            middle.updateBest();
+            node.children[index] = middle;
+            child = middle;
+        }
+        update(child, key, pos + match, delta);
+        
+        if (child.count == 0 && child.childCount == 0) {
+            node.removeChild(index);
+        } else if (child.count == 0 && child.childCount == 1) {
+            // Nothing ends here anymore, so join it with its only child
+            Node only = child.children[0];
+            only.label = child.label + only.label;
+            node.children[index] = only;
+        }
+        node.updateBest();
+    }
+    
+    private static int commonPrefix(String label, String key, int pos) {
+        int max = Math.min(label.length(), key.length() - pos);
+        int i = 0;
+        while (i < max && label.charAt(i) == key.charAt(pos + i)) {
+            i++;
+        }
+        return i;
+    }
+    
+    private static String key(String value) {
+        return value.toLowerCase(Locale.ROOT) + '\0' + value;
+    }
+}
+
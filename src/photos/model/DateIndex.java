@@ -0,0 +1,245 @@
+package photos.model;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Photo ids sorted by date taken, as a long array of epoch millis with the ids
+ * in a parallel int array. A date range is two binary searches and the ids in
+ * between, and the newest photos are the ids at the end.
+ * 
+ * Adds and removes are kept in small pending lists and merged in with one pass
+ * the next time the index is read, so adding thousands of photos doesn't shift
+ * the big arrays thousands of times.
+ * 
+ * @author Photos Team
+ */
+class DateIndex {
+    private long[] dates = new long[0];
+    private int[] ids = new int[0];
+    private int size;
+    
+    private final Pending adds = new Pending();
+    private final Pending removes = new Pending();
+    
+    /**
+     * (date, id) pairs waiting to be merged in or taken out.
+     */
+    private static class Pending {
+        long[] dates = new long[16];
+        int[] ids = new int[16];
+        int size;
+        
+        void add(long date, int id) {
+            if (size == dates.length) {
+                dates = Arrays.copyOf(dates, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            dates[size] = date;
+            ids[size] = id;
+            size++;
+        }
+        
+        void clear() {
+            size = 0;
+            if (dates.length > 1024) {
+                dates = new long[16];
+                ids = new int[16];
+            }
+        }
+    }
+    
+    /**
+     * Adds a photo id with its date.
+     */
+    void add(long date, int id) {
+        adds.add(date, id);
+    }
+    
+    /**
+     * Removes a photo id. The date must be the one it was added with.
+     */
+    void remove(long date, int id) {
+        removes.add(date, id);
+    }
+    
+    /**
+     * Returns how many ids are in the index.
+     */
+    int size() {
+        flush();
+        return size;
+    }
+    
+    /**
+     * Runs an action for the ids with a date from start to end, both
+     * included, oldest first.
+     */
+    void forRange(long start, long end, IntConsumer action) {
+        flush();
+        if (start > end) {
+            return;
+        }
+        int from = lowerBound(start);
+        int to = end == Long.MAX_VALUE ? size : lowerBound(end + 1);
+        for (int i = from; i < to; i++) {
+            action.accept(ids[i]);
+        }
+    }
+    
+    /**
+     * Returns how many ids have a date from start to end, both included.
+     */
+    int count(long start, long end) {
+        flush();
+        if (start > end) {
+            return 0;
+        }
+        return (end == Long.MAX_VALUE ? size : lowerBound(end + 1)) - lowerBound(start);
+    }
+    
+    /**
+     * Runs an action for the newest ids, newest first.
+     */
+    void forNewest(int count, IntConsumer action) {
+        flush();
+        for (int i = size - 1; i >= Math.max(0, size - count); i--) {
+            action.accept(ids[i]);
+        }
+    }
+    
+    /**
+     * Returns the first position with a date at or after the given one.
+     */
+    private int lowerBound(long date) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (dates[mid] < date) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Merges the pending changes in. Adds and removes of the same pair cancel
+     * out first, then the leftover removes are dropped and the leftover adds
+     * merged in, in one pass over the arrays.
+     */
+    private void flush() {
+        if (adds.size == 0 && removes.size == 0) {
+            return;
+        }
+        sort(adds);
+        sort(removes);
+        
+        // Cancel pairs that were both added and removed since the last flush
+        int a = 0;
+        int r = 0;
+        int keptAdds = 0;
+        int keptRemoves = 0;
+        while (a < adds.size || r < removes.size) {
+            int cmp = a == adds.size ? 1 : r == removes.size ? -1
+                : compare(adds.dates[a], adds.ids[a], removes.dates[r], removes.ids[r]);
+            if (cmp < 0) {
+                adds.dates[keptAdds] = adds.dates[a];
+                adds.ids[keptAdds++] = adds.ids[a++];
+            } else if (cmp > 0) {
+                removes.dates[keptRemoves] = removes.dates[r];
+                removes.ids[keptRemoves++] = removes.ids[r++];
+            } else {
+                a++;
+                r++;
+            }
+        }
+        
+        long[] newDates = new long[Math.max(16, size + keptAdds - keptRemoves)];
+        int[] newIds = new int[newDates.length];
+        int n = 0;
+        int i = 0;
+        a = 0;
+        r = 0;
+        while (i < size || a < keptAdds) {
+            if (i < size) {
+                // Skip removes for pairs that were never added
+                while (r < keptRemoves && compare(removes.dates[r], removes.ids[r], dates[i], ids[i]) < 0) {
+                    r++;
+                }
+                if (r < keptRemoves && removes.dates[r] == dates[i] && removes.ids[r] == ids[i]) {
+                    i++;
+                    r++;
+                    continue;
+                }
+            }
+            if (a == keptAdds || (i < size && compare(dates[i], ids[i], adds.dates[a], adds.ids[a]) <= 0)) {
+                newDates[n] = dates[i];
+                newIds[n++] = ids[i++];
+            } else {
+                newDates[n] = adds.dates[a];
+                newIds[n++] = adds.ids[a++];
+            }
+        }
+        dates = newDates;
+        ids = newIds;
+        size = n;
+        adds.clear();
+        removes.clear();
+    }
+    
+    private static int compare(long date1, int id1, long date2, int id2) {
+        int cmp = Long.compare(date1, date2);
+        return cmp != 0 ? cmp : Integer.compare(id1, id2);
+    }
+    
+    /**
+     * Sorts pending pairs by date, then id. A merge sort on the two arrays
+     * directly, so big batches don't need a boxed index array.
+     */
+    private static void sort(Pending pending) {
+        long[] tempDates = new long[pending.size];
+        int[] tempIds = new int[pending.size];
+        mergeSort(pending.dates, pending.ids, tempDates, tempIds, 0, pending.size);
+    }
+    
+    private static void mergeSort(long[] dates, int[] ids, long[] tempDates, int[] tempIds, int from, int to) {
+        if (to - from <= 16) {
+            for (int i = from + 1; i < to; i++) {
+                long date = dates[i];
+                int id = ids[i];
+                int j = i - 1;
+                while (j >= from && compare(dates[j], ids[j], date, id) > 0) {
+                    dates[j + 1] = dates[j];
+                    ids[j + 1] = ids[j];
+                    j--;
+                }
+                dates[j + 1] = date;
+                ids[j + 1] = id;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(dates, ids, tempDates, tempIds, from, mid);
+        mergeSort(dates, ids, tempDates, tempIds, mid, to);
+        if (compare(dates[mid - 1], ids[mid - 1], dates[mid], ids[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(dates, from, tempDates, from, to - from);
+        System.arraycopy(ids, from, tempIds, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j == to || (i < mid && compare(tempDates[i], tempIds[i], tempDates[j], tempIds[j]) <= 0)) {
+                dates[k] = tempDates[i];
+                ids[k] = tempIds[i++];
+            } else {
+                dates[k] = tempDates[j];
+                ids[k] = tempIds[j++];
+            }
+        }
+    }
+}
+
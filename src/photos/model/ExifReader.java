@@ -0,0 +1,339 @@
+package photos.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+
+/**
+ * Reads the date taken, orientation and size out of a JPEG's EXIF block (or
+ * a TIFF's tags) without decoding the image. Only the few bytes that are
+ * needed get read: for a JPEG, that's the segment headers up to the frame
+ * header plus the EXIF segment itself, which is at most 64 KB and usually
+ * much less. Anything that isn't a JPEG or TIFF, or that can't be parsed,
+ * just gives null so callers can fall back to the file's modified time.
+ * 
+ * @author Photos Team
+ */
+class ExifReader {
+    private static final int TAG_IMAGE_WIDTH = 0x0100;
+    private static final int TAG_IMAGE_HEIGHT = 0x0101;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_DATE_TIME_DIGITIZED = 0x9004;
+    private static final int TAG_PIXEL_WIDTH = 0xA002;
+    private static final int TAG_PIXEL_HEIGHT = 0xA003;
+    
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    
+    /** More IFD entries than this means the data is garbage. */
+    private static final int MAX_ENTRIES = 1000;
+    /** Give up on a JPEG after this many segments without finding the frame header. */
+    private static final int MAX_SEGMENTS = 64;
+    
+    /**
+     * What was found in a file. Values that weren't there are null or -1.
+     */
+    static class Metadata {
+        /** DateTimeOriginal, or failing that the digitized or modified date. */
+        LocalDateTime dateTaken;
+        /** EXIF orientation, 1 to 8. 1 means the image is stored upright. */
+        int orientation = 1;
+        int width = -1;
+        int height = -1;
+    }
+    
+    /**
+     * Something that can hand out bytes by offset, so the TIFF structure can
+     * be parsed the same way from a JPEG's EXIF segment or from a whole file.
+     */
+    @FunctionalInterface
+    private interface Source {
+        ByteBuffer read(long offset, int length) throws IOException;
+    }
+    
+    private ExifReader() {
+    }
+    
+    /**
+     * Reads the metadata of a JPEG or TIFF file.
+     * 
+     * @param file the image file
+     * @return what was found, or null if the file isn't a JPEG or TIFF or
+     *         couldn't be read
+     */
+    static Metadata read(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(channel);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Same as {@link #read(Path)}, for a file that's already open.
+     */
+    static Metadata read(FileChannel channel) {
+        try {
+            ByteBuffer start = read(channel, 0, 4);
+            if (start.remaining() < 4) {
+                return null;
+            }
+            if ((start.get(0) & 0xFF) == 0xFF && (start.get(1) & 0xFF) == 0xD8) {
+                return readJpeg(channel);
+            }
+            if ((start.get(0) == 'I' && start.get(1) == 'I') || (start.get(0) == 'M' && start.get(1) == 'M')) {
+                Metadata metadata = new Metadata();
+                return readTiff((offset, length) -> read(channel, offset, length), metadata, true)
+                    ? metadata : null;
+            }
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // Unreadable or badly broken - the caller falls back to the file date
+            return null;
+        }
+    }
+    
+    /**
+     * Walks the JPEG segment headers, reading the EXIF segment and stopping at
+     * the frame header, which has the real image size.
+     */
+    private static Metadata readJpeg(FileChannel channel) throws IOException {
+        Metadata metadata = new Metadata();
+        boolean found = false;
+        long position = 2;
+        for (int i = 0; i < MAX_SEGMENTS; i++) {
+            ByteBuffer header = read(channel, position, 4);
+            if (header.remaining() < 4 || (header.get(0) & 0xFF) != 0xFF) {
+                break;
+            }
+            int marker = header.get(1) & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte before the real marker
+                position++;
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // End of image or start of the image data - no headers after this
+                break;
+            }
+            int length = header.getShort(2) & 0xFFFF;
+            if (length < 2) {
+                break;
+            }
+            
+            if (marker == 0xE1 && !found) {
+                ByteBuffer segment = read(channel, position + 4, length - 2);
+                if (isExif(segment)) {
+                    ByteBuffer tiff = segment.position(6).slice();
+                    found = readTiff((offset, size) -> slice(tiff, offset, size), metadata, false);
+                }
+            } else if (isFrameHeader(marker)) {
+                ByteBuffer frame = read(channel, position + 4, 5);
+                if (frame.remaining() == 5) {
+                    metadata.height = frame.getShort(1) & 0xFFFF;
+                    metadata.width = frame.getShort(3) & 0xFFFF;
+                    found = true;
+                }
+                break;
+            }
+            position += 2 + length;
+        }
+        return found ? metadata : null;
+    }
+    
+    /**
+     * SOF0 to SOF15 hold the image size, except C4 (Huffman tables), C8
+     * (reserved) and CC (arithmetic coding).
+     */
+    private static boolean isFrameHeader(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+    
+    private static boolean isExif(ByteBuffer segment) {
+        if (segment.remaining() < 14) {
+            return false;
+        }
+        byte[] id = new byte[6];
+        segment.get(0, id);
+        return id[0] == 'E' && id[1] == 'x' && id[2] == 'i' && id[3] == 'f' && id[4] == 0 && id[5] == 0;
+    }
+    
+    /**
+     * Parses a TIFF header and the tags we care about in IFD0 and the EXIF IFD.
+     * 
+     * @param source the TIFF data, with offset 0 at the byte order mark
+     * @param metadata where to put what's found
+     * @param useImageSize whether to take the size from IFD0 - only for TIFF
+     *                     files, since a JPEG's frame header has the real size
+     * @return true if it was a valid TIFF structure
+     */
+    private static boolean readTiff(Source source, Metadata metadata, boolean useImageSize) throws IOException {
+        ByteBuffer header = source.read(0, 8);
+        if (header.remaining() < 8) {
+            return false;
+        }
+        ByteOrder order;
+        if (header.get(0) == 'I' && header.get(1) == 'I') {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else if (header.get(0) == 'M' && header.get(1) == 'M') {
+            order = ByteOrder.BIG_ENDIAN;
+        } else {
+            return false;
+        }
+        header.order(order);
+        if (header.getShort(2) != 42) {
+            return false;
+        }
+        
+        long exifOffset = -1;
+        String dateTime = null;
+        ByteBuffer ifd0 = readIfd(source, header.getInt(4) & 0xFFFFFFFFL, order);
+        while (ifd0 != null && ifd0.remaining() >= 12) {
+            int tag = ifd0.getShort() & 0xFFFF;
+            int type = ifd0.getShort() & 0xFFFF;
+            int count = ifd0.getInt();
+            ByteBuffer value = ifd0.slice(ifd0.position(), 4).order(order);
+            ifd0.position(ifd0.position() + 4);
+            
+            if (tag == TAG_ORIENTATION && type == TYPE_SHORT) {
+                int orientation = value.getShort(0) & 0xFFFF;
+                if (orientation >= 1 && orientation <= 8) {
+                    metadata.orientation = orientation;
+                }
+            } else if (tag == TAG_EXIF_IFD) {
+                exifOffset = value.getInt(0) & 0xFFFFFFFFL;
+            } else if (tag == TAG_DATE_TIME) {
+                dateTime = readAscii(source, value, count, order);
+            } else if (useImageSize && tag == TAG_IMAGE_WIDTH) {
+                metadata.width = readNumber(value, type);
+            } else if (useImageSize && tag == TAG_IMAGE_HEIGHT) {
+                metadata.height = readNumber(value, type);
+            }
+        }
+        
+        String original = null;
+        String digitized = null;
+        ByteBuffer exif = exifOffset < 0 ? null : readIfd(source, exifOffset, order);
+        while (exif != null && exif.remaining() >= 12) {
+            int tag = exif.getShort() & 0xFFFF;
+            int type = exif.getShort() & 0xFFFF;
+            int count = exif.getInt();
+            ByteBuffer value = exif.slice(exif.position(), 4).order(order);
+            exif.position(exif.position() + 4);
+            
+            if (tag == TAG_DATE_TIME_ORIGINAL) {
+                original = readAscii(source, value, count, order);
+            } else if (tag == TAG_DATE_TIME_DIGITIZED) {
+                digitized = readAscii(source, value, count, order);
+            } else if (tag == TAG_PIXEL_WIDTH && metadata.width < 0) {
+                metadata.width = readNumber(value, type);
+            } else if (tag == TAG_PIXEL_HEIGHT && metadata.height < 0) {
+                metadata.height = readNumber(value, type);
+            }
+        }
+        
+        metadata.dateTaken = parseDate(original);
+        if (metadata.dateTaken == null) {
+            metadata.dateTaken = parseDate(digitized);
+        }
+        if (metadata.dateTaken == null) {
+            metadata.dateTaken = parseDate(dateTime);
+        }
+        return true;
+    }
+    
+    /**
+     * Reads the entries of an IFD, leaving the buffer positioned at the first one.
+     */
+    private static ByteBuffer readIfd(Source source, long offset, ByteOrder order) throws IOException {
+        ByteBuffer count = source.read(offset, 2).order(order);
+        if (count.remaining() < 2) {
+            return null;
+        }
+        int entries = count.getShort(0) & 0xFFFF;
+        if (entries > MAX_ENTRIES) {
+            return null;
+        }
+        return source.read(offset + 2, entries * 12).order(order);
+    }
+    
+    private static int readNumber(ByteBuffer value, int type) {
+        if (type == TYPE_SHORT) {
+            return value.getShort(0) & 0xFFFF;
+        }
+        if (type == TYPE_LONG) {
+            return value.getInt(0);
+        }
+        return -1;
+    }
+    
+    /**
+     * Reads an ASCII value. Strings of up to 4 bytes are stored right in the
+     * entry; longer ones are at an offset.
+     */
+    private static String readAscii(Source source, ByteBuffer value, int count, ByteOrder order) throws IOException {
+        if (count <= 0 || count > 64) {
+            return null;
+        }
+        ByteBuffer text = count <= 4 ? value : source.read(value.getInt(0) & 0xFFFFFFFFL, count);
+        byte[] bytes = new byte[Math.min(count, text.remaining())];
+        text.get(0, bytes);
+        int end = 0;
+        while (end < bytes.length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, 0, end, StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * Parses an EXIF date, "yyyy:MM:dd HH:mm:ss". Cameras without a clock
+     * write zeros or spaces, which gives null.
+     */
+    static LocalDateTime parseDate(String text) {
+        if (text == null || text.length() < 19) {
+            return null;
+        }
+        try {
+            return LocalDateTime.of(
+                Integer.parseInt(text.substring(0, 4)),
+                Integer.parseInt(text.substring(5, 7)),
+                Integer.parseInt(text.substring(8, 10)),
+                Integer.parseInt(text.substring(11, 13)),
+                Integer.parseInt(text.substring(14, 16)),
+                Integer.parseInt(text.substring(17, 19)));
+        } catch (NumberFormatException | DateTimeException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Reads up to length bytes at a position. Gives fewer at the end of the file.
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.flip();
+    }
+    
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, int length) {
+        if (offset < 0 || offset > buffer.limit()) {
+            return ByteBuffer.allocate(0);
+        }
+        int size = (int) Math.min(length, buffer.limit() - offset);
+        return buffer.slice((int) offset, size);
+    }
+}
+
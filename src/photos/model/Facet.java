@@ -0,0 +1,47 @@
+package photos.model;
+
+/**
+ * A tag value and how many photos in some set have it, like
+ * "person=Alice (312)". Made by {@link SearchIndex#facets}.
+ * 
+ * @author Photos Team
+ */
+public class Facet {
+    private final Tag tag;
+    private final int count;
+    
+    /**
+     * Creates a facet.
+     * 
+     * @param tag the tag
+     * @param count how many photos have it
+     */
+    public Facet(Tag tag, int count) {
+        this.tag = tag;
+        this.count = count;
+    }
+    
+    /**
+     * Returns the tag.
+     * 
+     * @return the tag
+     */
+    public Tag getTag() {
+        return tag;
+    }
+    
+    /**
+     * Returns how many photos have the tag.
+     * 
+     * @return the photo count
+     */
+    public int getCount() {
+        return count;
+    }
+    
+    @Override
+    public String toString() {
+        return tag + " (" + count + ")";
+    }
+}
+
@@ -0,0 +1,139 @@
+package photos.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches the folders that photos live in and reports files that were
+ * created, deleted or modified. Events are collected on a background thread
+ * and handed over in batches: a batch goes out once the folders have been
+ * quiet for a moment, or after a maximum wait if they keep changing. Copying
+ * a hundred files in only gives a batch or two, and the batch only says which
+ * paths changed - it's up to the handler to look at what's there now.
+ * 
+ * @author Photos Team
+ */
+class FileWatcher implements Closeable {
+    private static final long QUIET_DELAY = 300;
+    private static final long MAX_DELAY = 2000;
+    
+    private final WatchService service;
+    private final Consumer<Batch> handler;
+    private final Set<Path> watched = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Paths that changed since the last batch.
+     */
+    static class Batch {
+        /** Files or folders that were created, deleted or modified. */
+        final Set<Path> changed = new HashSet<>();
+        /** Folders where events were lost or that went away, so everything in them should be checked. */
+        final Set<Path> folders = new HashSet<>();
+        
+        boolean isEmpty() {
+            return changed.isEmpty() && folders.isEmpty();
+        }
+    }
+    
+    /**
+     * Starts a watcher. Nothing is watched until {@link #watch(Path)} is called.
+     * 
+     * @param handler gets each batch, on the watcher thread
+     */
+    FileWatcher(Consumer<Batch> handler) throws IOException {
+        this.service = FileSystems.getDefault().newWatchService();
+        this.handler = handler;
+        Thread thread = new Thread(this::run, "photos-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Starts watching a folder, if it isn't watched already. Doesn't include
+     * its subfolders.
+     * 
+     * @param folder the folder to watch
+     */
+    void watch(Path folder) {
+        if (folder == null || !watched.add(folder)) {
+            return;
+        }
+        try {
+            folder.register(service,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | ClosedWatchServiceException e) {
+            watched.remove(folder);
+            System.err.println("Failed to watch " + folder + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Stops the watcher thread.
+     */
+    @Override
+    public void close() throws IOException {
+        service.close();
+    }
+    
+    private void run() {
+        try {
+            while (true) {
+                Batch batch = new Batch();
+                collect(service.take(), batch);
+                long start = System.currentTimeMillis();
+                long wait = QUIET_DELAY;
+                while (wait > 0) {
+                    WatchKey key = service.poll(wait, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        break;
+                    }
+                    collect(key, batch);
+                    wait = Math.min(QUIET_DELAY, start + MAX_DELAY - System.currentTimeMillis());
+                }
+                if (!batch.isEmpty()) {
+                    try {
+                        handler.accept(batch);
+                    } catch (RuntimeException e) {
+                        System.err.println("Failed to handle file changes: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+    
+    /**
+     * Adds a key's events to a batch and gets the key ready for more.
+     */
+    private void collect(WatchKey key, Batch batch) {
+        Path folder = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                batch.folders.add(folder);
+            } else {
+                batch.changed.add(folder.resolve((Path) event.context()));
+            }
+        }
+        if (!key.reset()) {
+            // The folder was deleted or moved away
+            watched.remove(folder);
+            batch.folders.add(folder);
+        }
+    }
+}
+
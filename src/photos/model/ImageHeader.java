@@ -0,0 +1,137 @@
+package photos.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+
+/**
+ * The format and size of an image, read from the first few bytes of the
+ * file instead of decoding it. Knows PNG (IHDR chunk), GIF (logical screen),
+ * BMP (info header), and JPEG and TIFF through {@link ExifReader}, which also
+ * gives the orientation and date taken.
+ * 
+ * @author Photos Team
+ */
+class ImageHeader {
+    static final String PNG = "PNG";
+    static final String JPEG = "JPEG";
+    static final String GIF = "GIF";
+    static final String BMP = "BMP";
+    static final String TIFF = "TIFF";
+    
+    final String format;
+    /** 0 if the header didn't say. */
+    final int width;
+    final int height;
+    /** EXIF orientation, 1 if the format doesn't have one. */
+    final int orientation;
+    /** From EXIF, or null. */
+    final LocalDateTime dateTaken;
+    
+    private ImageHeader(String format, int width, int height, int orientation, LocalDateTime dateTaken) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.dateTaken = dateTaken;
+    }
+    
+    private ImageHeader(String format, int width, int height) {
+        this(format, width, height, 1, null);
+    }
+    
+    /**
+     * Reads an image file's header.
+     * 
+     * @param file the image file
+     * @return the header, or null if the format isn't one we know or the file
+     *         couldn't be read
+     */
+    static ImageHeader read(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer start = ByteBuffer.allocate(30);
+            while (start.hasRemaining() && channel.read(start) >= 0) {
+                // Keep reading, small files may come in pieces
+            }
+            start.flip();
+            if (start.remaining() < 4) {
+                return null;
+            }
+            
+            int b0 = start.get(0) & 0xFF;
+            int b1 = start.get(1) & 0xFF;
+            if (b0 == 0x89 && b1 == 'P' && start.get(2) == 'N' && start.get(3) == 'G') {
+                return readPng(start);
+            }
+            if (b0 == 'G' && b1 == 'I' && start.get(2) == 'F') {
+                return readGif(start);
+            }
+            if (b0 == 'B' && b1 == 'M') {
+                return readBmp(start);
+            }
+            if ((b0 == 0xFF && b1 == 0xD8) || (b0 == 'I' && b1 == 'I') || (b0 == 'M' && b1 == 'M')) {
+                ExifReader.Metadata metadata = ExifReader.read(channel);
+                if (metadata == null) {
+                    return null;
+                }
+                // Keep the date even if the size couldn't be found
+                boolean sized = metadata.width > 0 && metadata.height > 0;
+                return new ImageHeader(b0 == 0xFF ? JPEG : TIFF, sized ? metadata.width : 0,
+                    sized ? metadata.height : 0, metadata.orientation, metadata.dateTaken);
+            }
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * PNG: 8 byte signature, then the IHDR chunk's length and type, then
+     * width and height as big-endian ints.
+     */
+    private static ImageHeader readPng(ByteBuffer start) {
+        if (start.remaining() < 24 || start.get(12) != 'I' || start.get(13) != 'H'
+                || start.get(14) != 'D' || start.get(15) != 'R') {
+            return null;
+        }
+        return sized(PNG, start.order(ByteOrder.BIG_ENDIAN).getInt(16), start.getInt(20));
+    }
+    
+    /**
+     * GIF: "GIF87a" or "GIF89a", then the logical screen width and height as
+     * little-endian shorts.
+     */
+    private static ImageHeader readGif(ByteBuffer start) {
+        if (start.remaining() < 10) {
+            return null;
+        }
+        start.order(ByteOrder.LITTLE_ENDIAN);
+        return sized(GIF, start.getShort(6) & 0xFFFF, start.getShort(8) & 0xFFFF);
+    }
+    
+    /**
+     * BMP: 14 byte file header, then an info header whose size says which
+     * kind it is. The old 12 byte kind has short sizes; the rest have ints,
+     * with a negative height for images stored top-down.
+     */
+    private static ImageHeader readBmp(ByteBuffer start) {
+        if (start.remaining() < 26) {
+            return null;
+        }
+        start.order(ByteOrder.LITTLE_ENDIAN);
+        int infoSize = start.getInt(14);
+        if (infoSize == 12) {
+            return sized(BMP, start.getShort(18) & 0xFFFF, start.getShort(20) & 0xFFFF);
+        }
+        return sized(BMP, start.getInt(18), Math.abs(start.getInt(22)));
+    }
+    
+    private static ImageHeader sized(String format, int width, int height) {
+        return width > 0 && height > 0 ? new ImageHeader(format, width, height) : null;
+    }
+}
+
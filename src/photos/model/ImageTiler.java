@@ -0,0 +1,166 @@
+package photos.model;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Cuts a photo into square tiles at halving sizes, for zooming into photos
+ * too big to decode whole. Level 0 is full size, level 1 is half size, and
+ * so on down to the level that fits in one tile.
+ * 
+ * Tiles are saved in a {@link ThumbnailStore} the first time they're
+ * needed, a whole row of a level at a time, since reading a band across the
+ * photo costs about the same as reading one tile of it: most formats have
+ * to be read from the top anyway. Only that band is ever in memory, never
+ * the whole photo.
+ * 
+ * @author Photos Team
+ */
+public class ImageTiler {
+    /** How many pixels wide and high a tile is, at its own level. */
+    public static final int TILE_SIZE = 256;
+    
+    private final File source;
+    private final int width;
+    private final int height;
+    private final ThumbnailStore store;
+    
+    /**
+     * Creates a tiler for a photo. Nothing is read until a tile is asked for.
+     * 
+     * @param source the full size image file
+     * @param width the photo's width in pixels
+     * @param height the photo's height in pixels
+     * @param store where tiles are saved
+     */
+    public ImageTiler(File source, int width, int height, ThumbnailStore store) {
+        this.source = source;
+        this.width = width;
+        this.height = height;
+        this.store = store;
+    }
+    
+    /**
+     * Returns how many levels there are, down to the one that fits in one
+     * tile.
+     * 
+     * @return the number of levels, at least 1
+     */
+    public int getLevels() {
+        int levels = 1;
+        while (Math.max(width, height) > TILE_SIZE << (levels - 1)) {
+            levels++;
+        }
+        return levels;
+    }
+    
+    /**
+     * Returns how many tiles across a level is.
+     * 
+     * @param level the level
+     * @return the number of columns
+     */
+    public int getColumns(int level) {
+        return (scaled(width, level) + TILE_SIZE - 1) / TILE_SIZE;
+    }
+    
+    /**
+     * Returns how many tiles down a level is.
+     * 
+     * @param level the level
+     * @return the number of rows
+     */
+    public int getRows(int level) {
+        return (scaled(height, level) + TILE_SIZE - 1) / TILE_SIZE;
+    }
+    
+    /**
+     * Returns the file for a tile, cutting its row from the photo first if
+     * it isn't saved yet. Tiles at the right and bottom edges can be smaller
+     * than {@link #TILE_SIZE}.
+     * 
+     * @param level the level, 0 for full size
+     * @param column the tile's column at that level
+     * @param row the tile's row at that level
+     * @return the tile's file, or null if it couldn't be kept
+     * @throws IOException if the photo can't be read or the tiles saved
+     */
+    public synchronized File tile(int level, int column, int row) throws IOException {
+        ThumbnailStore.Key key = key(level, column, row);
+        File file = store.find(key);
+        if (file == null) {
+            cutRow(level, row);
+            file = store.find(key);
+        }
+        return file;
+    }
+    
+    private ThumbnailStore.Key key(int level, int column, int row) {
+        return store.key(source, "t" + level + "x" + column + "y" + row);
+    }
+    
+    /**
+     * Reads one band of the photo, skipping pixels to get the level's size,
+     * and saves each tile in it.
+     */
+    private void cutRow(int level, int row) throws IOException {
+        int step = 1 << level;
+        int top = row * TILE_SIZE * step;
+        int columns = getColumns(level);
+        // Keys first, so tiles are filed under the version of the photo they came from
+        ThumbnailStore.Key[] keys = new ThumbnailStore.Key[columns];
+        for (int column = 0; column < columns; column++) {
+            keys[column] = key(level, column, row);
+        }
+        
+        BufferedImage band;
+        try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+            if (in == null) {
+                throw new IOException("Can't open " + source.getName());
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Can't read " + source.getName());
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                // The file's own size wins if it doesn't match what the photo says
+                int sourceWidth = Math.min(width, reader.getWidth(0));
+                int bandHeight = Math.min(TILE_SIZE * step, Math.min(height, reader.getHeight(0)) - top);
+                if (bandHeight <= 0) {
+                    return;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, top, sourceWidth, bandHeight));
+                param.setSourceSubsampling(step, step, 0, 0);
+                band = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+        
+        for (int column = 0; column < columns; column++) {
+            int x = column * TILE_SIZE;
+            int tileWidth = Math.min(TILE_SIZE, band.getWidth() - x);
+            if (tileWidth <= 0) {
+                break;
+            }
+            int[] argb = band.getRGB(x, 0, tileWidth, band.getHeight(), null, 0, tileWidth);
+            store.save(keys[column], argb, tileWidth, band.getHeight());
+        }
+    }
+    
+    private static int scaled(int size, int level) {
+        int step = 1 << level;
+        return (size + step - 1) / step;
+    }
+}
+
@@ -0,0 +1,129 @@
+package photos.model;
+
+/**
+ * Gets told about changes to a user's albums and photos. Register one with
+ * {@link User#addListener(ModelListener)}. All methods do nothing by default
+ * so listeners only override what they care about.
+ * 
+ * @author Photos Team
+ */
+public interface ModelListener {
+    
+    /**
+     * Called after an album is added to a user.
+     * 
+     * @param user the user that owns the album
+     * @param album the album that was added
+     */
+    default void albumAdded(User user, Album album) {
+    }
+    
+    /**
+     * Called after an album is removed from a user.
+     * 
+     * @param user the user that owned the album
+     * @param album the album that was removed
+     */
+    default void albumRemoved(User user, Album album) {
+    }
+    
+    /**
+     * Called after an album gets a new name.
+     * 
+     * @param user the user that owns the album
+     * @param album the renamed album
+     * @param oldName the name the album had before
+     */
+    default void albumRenamed(User user, Album album, String oldName) {
+    }
+    
+    /**
+     * Called after a photo is added to an album.
+     * 
+     * @param user the user that owns the album
+     * @param album the album the photo was added to
+     * @param photo the photo that was added
+     */
+    default void photoAdded(User user, Album album, Photo photo) {
+    }
+    
+    /**
+     * Called after a photo is removed from an album.
+     * 
+     * @param user the user that owns the album
+     * @param album the album the photo was removed from
+     * @param photo the photo that was removed
+     */
+    default void photoRemoved(User user, Album album, Photo photo) {
+    }
+    
+    /**
+     * Called after a photo's caption changes.
+     * 
+     * @param user the user that owns the photo
+     * @param photo the photo with the new caption
+     */
+    default void captionChanged(User user, Photo photo) {
+    }
+    
+    /**
+     * Called after a tag is added to a photo.
+     * 
+     * @param user the user that owns the photo
+     * @param photo the photo that was tagged
+     * @param tag the tag that was added
+     */
+    default void tagAdded(User user, Photo photo, Tag tag) {
+    }
+    
+    /**
+     * Called after a tag is removed from a photo.
+     * 
+     * @param user the user that owns the photo
+     * @param photo the photo the tag was removed from
+     * @param tag the tag that was removed
+     */
+    default void tagRemoved(User user, Photo photo, Tag tag) {
+    }
+    
+    /**
+     * Called after a photo is pointed at a different file.
+     * 
+     * @param user the user that owns the photo
+     * @param photo the photo with the new file path
+     * @param oldPath the file path the photo had before
+     */
+    default void filePathChanged(User user, Photo photo, String oldPath) {
+    }
+    
+    /**
+     * Called after a photo's date taken changes, like when its file was 
+     * modified on disk.
+     * 
+     * @param user the user that owns the photo
+     * @param photo the photo with the new date
+     */
+    default void dateChanged(User user, Photo photo) {
+    }
+    
+    /**
+     * Called when a photo's file goes missing from disk or shows up again. 
+     * Check {@link Photo#isMissing()} for which one.
+     * 
+     * @param user the user that owns the photo
+     * @param photo the photo whose file changed
+     */
+    default void fileStatusChanged(User user, Photo photo) {
+    }
+    
+    /**
+     * Called after a photo's format, size or orientation is read again from 
+     * its file.
+     * 
+     * @param user the user that owns the photo
+     * @param photo the photo with the new image info
+     */
+    default void imageInfoChanged(User user, Photo photo) {
+    }
+}
+
@@ -5,11 +5,13 @@ import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Set;
 
 /**
  * Photo class. Stores info about a photo - where it's located on disk, 
- * its caption, when it was taken (from file modification date), and tags.
+ * its caption, when it was taken (from its EXIF data, or the file modification 
+ * date if it has none), and tags.
  * 
  * @author Photos Team
  */
@@ -20,10 +22,20 @@ public class Photo implements Serializable {
     private String caption;
     private LocalDateTime dateTaken;
     private Set<Tag> tags;
+    /** Image format and size from the file header. Null and 0 if not known. */
+    private String format;
+    private int width;
+    private int height;
+    /** EXIF orientation. 0 means not read yet. */
+    private int orientation;
+    private transient User owner;
+    /** Set while the file can't be found on disk. Not saved - it's checked again each run. */
+    private transient boolean missing;
     
     /**
-     * Creates a new photo from a file path. Gets the date from the file's 
-     * last modified time since we can't read EXIF data.
+     * Creates a new photo from a file path. Gets the date from the EXIF 
+     * DateTimeOriginal if the file has one, otherwise from the file's last 
+     * modified time. The format and size are read from the file header.
      * 
      * @param filePath path to the image file
      */
@@ -31,25 +43,119 @@ public class Photo implements Serializable {
         this.filePath = filePath;
         this.caption = "";
         this.tags = new HashSet<>();
-        updateDateFromFile();
+        readFile();
     }
     
     /**
-     * Updates the date by reading the file's last modified time.
+     * Rebuilds a photo from saved values without touching the file. Used when 
+     * replaying the change journal.
+     */
+    Photo(String filePath, String caption, LocalDateTime dateTaken) {
+        this.filePath = filePath;
+        this.caption = caption;
+        this.dateTaken = dateTaken;
+        this.tags = new HashSet<>();
+    }
+    
+    /**
+     * Sets the user this photo belongs to so changes get reported to them.
+     */
+    void setOwner(User owner) {
+        this.owner = owner;
+    }
+    
+    /**
+     * Updates the date by reading the file's EXIF date, or its last modified 
+     * time if it doesn't have one. The format and size get read again too.
      */
     public void updateDateFromFile() {
+        LocalDateTime oldDate = dateTaken;
+        String oldFormat = format;
+        int oldWidth = width;
+        int oldHeight = height;
+        int oldOrientation = orientation;
+        readFile();
+        fireFileChanges(oldDate, oldFormat, oldWidth, oldHeight, oldOrientation);
+    }
+    
+    /**
+     * Takes the date, format, size and orientation from a copy of this photo 
+     * that was just read from its file on another thread. Does the same as 
+     * {@link #updateDateFromFile()}, without reading the file here.
+     */
+    void updateFrom(Photo read) {
+        LocalDateTime oldDate = dateTaken;
+        String oldFormat = format;
+        int oldWidth = width;
+        int oldHeight = height;
+        int oldOrientation = orientation;
+        dateTaken = read.dateTaken;
+        setImageInfo(read.format, read.width, read.height, read.orientation);
+        fireFileChanges(oldDate, oldFormat, oldWidth, oldHeight, oldOrientation);
+    }
+    
+    private void fireFileChanges(LocalDateTime oldDate, String oldFormat, int oldWidth, int oldHeight,
+            int oldOrientation) {
+        if (owner == null) {
+            return;
+        }
+        if (oldDate != null && !dateTaken.equals(oldDate)) {
+            owner.fire(l -> l.dateChanged(owner, this));
+        }
+        if (!Objects.equals(format, oldFormat) || width != oldWidth || height != oldHeight
+                || orientation != oldOrientation) {
+            owner.fire(l -> l.imageInfoChanged(owner, this));
+        }
+    }
+    
+    /**
+     * Reads the date, format, size and orientation from the file, reading its 
+     * header only once.
+     */
+    private void readFile() {
         File file = new File(filePath);
-        if (file.exists()) {
+        if (!file.exists()) {
+            this.dateTaken = LocalDateTime.now();
+            return;
+        }
+        ImageHeader header = ImageHeader.read(file.toPath());
+        if (header != null) {
+            this.format = header.format;
+            this.width = header.width;
+            this.height = header.height;
+            this.orientation = header.orientation;
+        } else {
+            this.format = null;
+            this.width = 0;
+            this.height = 0;
+            this.orientation = 1;
+        }
+        if (header != null && header.dateTaken != null) {
+            this.dateTaken = header.dateTaken;
+        } else {
             long lastModified = file.lastModified();
             this.dateTaken = LocalDateTime.ofInstant(
                 java.time.Instant.ofEpochMilli(lastModified),
                 ZoneId.systemDefault()
             );
-        } else {
-            this.dateTaken = LocalDateTime.now();
         }
     }
     
+    /**
+     * Takes over the tags of another copy of this photo, and its caption and
+     * image info where this one has none. Used to merge the copies old saves 
+     * can have; no events are fired.
+     */
+    void absorb(Photo copy) {
+        if (caption.isEmpty()) {
+            caption = copy.caption;
+        }
+        if (orientation == 0 && copy.orientation != 0) {
+            setImageInfo(copy.format, copy.width, copy.height, copy.orientation);
+        }
+        tags.addAll(copy.tags);
+    }
+    
     /**
      * Returns the file path of the photo.
      * 
@@ -60,13 +166,17 @@ public class Photo implements Serializable {
     }
     
     /**
-     * Sets a new file path and updates the date from the file.
+     * Sets a new file path and updates the date, format and size from the file.
      * 
      * @param filePath the new file path
      */
     public void setFilePath(String filePath) {
+        String oldPath = this.filePath;
         this.filePath = filePath;
-        updateDateFromFile();
+        readFile();
+        if (owner != null) {
+            owner.fire(l -> l.filePathChanged(owner, this, oldPath));
+        }
     }
     
     /**
@@ -85,10 +195,13 @@ public class Photo implements Serializable {
      */
     public void setCaption(String caption) {
         this.caption = caption;
+        if (owner != null) {
+            owner.fire(l -> l.captionChanged(owner, this));
+        }
     }
     
     /**
-     * Returns when the photo was taken (from file modification date).
+     * Returns when the photo was taken (from EXIF or the file modification date).
      * 
      * @return the date and time the photo was taken
      */
@@ -96,6 +209,106 @@ public class Photo implements Serializable {
         return dateTaken;
     }
     
+    /**
+     * Overwrites the date taken with a saved value.
+     */
+    void setDateTaken(LocalDateTime dateTaken) {
+        this.dateTaken = dateTaken;
+    }
+    
+    /**
+     * Returns the image format, like "JPEG" or "PNG", or null if it isn't 
+     * known.
+     * 
+     * @return the image format
+     */
+    public String getFormat() {
+        return format;
+    }
+    
+    /**
+     * Returns the width of the image in pixels, as stored in the file (before 
+     * any EXIF rotation). 0 if it isn't known.
+     * 
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Returns the height of the image in pixels, as stored in the file (before 
+     * any EXIF rotation). 0 if it isn't known.
+     * 
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Returns true if the image's width and height are known.
+     * 
+     * @return true if the size is known
+     */
+    public boolean hasSize() {
+        return width > 0 && height > 0;
+    }
+    
+    /**
+     * Overwrites the format, size and orientation with known values.
+     */
+    void setImageInfo(String format, int width, int height, int orientation) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+    }
+    
+    /**
+     * Returns the EXIF orientation of the image, from 1 to 8. 1 means it's 
+     * stored upright; 6 and 8 are turned 90 degrees, 3 is upside down, and 
+     * 2, 4, 5 and 7 are mirrored. Photos saved before this was recorded 
+     * get it filled in when their user is loaded.
+     * 
+     * @return the EXIF orientation, or 1 if the file doesn't have one or it 
+     *         hasn't been read yet
+     */
+    public int getOrientation() {
+        return orientation == 0 ? 1 : orientation;
+    }
+    
+    /**
+     * Returns the orientation as it's stored, 0 if it hasn't been read. For 
+     * saving, and for finding photos that still need it read.
+     */
+    int getStoredOrientation() {
+        return orientation;
+    }
+    
+    /**
+     * Returns true if the photo's file was deleted or moved while the app 
+     * was running.
+     * 
+     * @return true if the file is missing
+     */
+    public boolean isMissing() {
+        return missing;
+    }
+    
+    /**
+     * Marks the photo's file as missing or found again.
+     */
+    void setMissing(boolean missing) {
+        if (this.missing == missing) {
+            return;
+        }
+        this.missing = missing;
+        if (owner != null) {
+            owner.fire(l -> l.fileStatusChanged(owner, this));
+        }
+    }
+    
     /**
      * Returns all tags for this photo.
      * 
@@ -112,7 +325,13 @@ public class Photo implements Serializable {
      * @return true if the tag was added, false if it already exists
      */
     public boolean addTag(Tag tag) {
-        return tags.add(tag);
+        if (!tags.add(tag)) {
+            return false;
+        }
+        if (owner != null) {
+            owner.fire(l -> l.tagAdded(owner, this, tag));
+        }
+        return true;
     }
     
     /**
@@ -122,7 +341,13 @@ public class Photo implements Serializable {
      * @return true if the tag was removed, false if it wasn't present
      */
     public boolean removeTag(Tag tag) {
-        return tags.remove(tag);
+        if (!tags.remove(tag)) {
+            return false;
+        }
+        if (owner != null) {
+            owner.fire(l -> l.tagRemoved(owner, this, tag));
+        }
+        return true;
     }
     
     /**
@@ -2,18 +2,31 @@ package photos.model;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
 
 /**
  * Main app class. Keeps track of all users and handles saving/loading 
- * everything to disk using Java serialization. Also manages tag types.
+ * everything to disk. Also manages tag types.
+ * 
+ * Each user lives in their own shard under data/users and is only loaded 
+ * when someone logs in as them, so startup just reads the small index of 
+ * usernames. Changes are appended to a per-user journal as they happen and 
+ * written to disk in the background.
  * 
  * @author Photos Team
  */
@@ -21,10 +34,34 @@ public class PhotoApp implements java.io.Serializable {
     private static final long serialVersionUID = 1L;
     
     private static final String DATA_DIR = "data";
+    private static final String USERS_DIR = DATA_DIR + File.separator + "users";
+    private static final String INDEX_FILE = DATA_DIR + File.separator + "users.idx";
     private static final String USERS_FILE = DATA_DIR + File.separator + "users.dat";
+    private static final String JOURNAL_FILE = DATA_DIR + File.separator + "users.journal";
+    private static final String STOCK_FINGERPRINT_FILE = DATA_DIR + File.separator + "stock.fingerprint";
+    private static final String THUMBNAILS_DIR = DATA_DIR + File.separator + "thumbnails";
+    /** Most disk space saved thumbnails may take. */
+    private static final long THUMBNAILS_MAX_BYTES = 256L * 1024 * 1024;
+    private static final String TILES_DIR = DATA_DIR + File.separator + "tiles";
+    /** Most disk space saved zoom tiles may take. */
+    private static final long TILES_MAX_BYTES = 512L * 1024 * 1024;
     
+    /** Users that are loaded right now. Also how users were kept in the old users.dat. */
     private Map<String, User> users;
     private List<String> tagTypes;
+    /** Only read from old users.dat files, to match them up with their journal. */
+    private long journalGeneration;
+    
+    private transient Set<String> usernames;
+    private transient UserStore store;
+    private transient boolean indexDirty;
+    /** Also read on the watcher thread, so only set once it's scanned. */
+    private transient volatile StockLibrary stockLibrary;
+    private transient FileWatcher watcher;
+    /** Each watched user's photos by file, for matching up file changes. */
+    private transient Map<String, PhotoFiles> photoFiles;
+    private transient ThumbnailStore thumbnails;
+    private transient ThumbnailStore tiles;
     
     /**
      * Creates a new PhotoApp and sets up default tag types.
@@ -32,6 +69,8 @@ public class PhotoApp implements java.io.Serializable {
     public PhotoApp() {
         this.users = new HashMap<>();
         this.tagTypes = new ArrayList<>();
+        this.usernames = new LinkedHashSet<>();
+        this.usernames.add("stock");
         initializeDefaultTagTypes();
     }
     
@@ -44,27 +83,59 @@ public class PhotoApp implements java.io.Serializable {
     }
     
     /**
-     * Returns all users.
+     * Returns the names of all users, without loading any of them.
      */
-    public List<User> getUsers() {
-        return new ArrayList<>(users.values());
+    public List<String> getUsernames() {
+        return new ArrayList<>(usernames);
     }
     
     /**
-     * Gets a user by username. Returns null if not found.
+     * Gets a user by username, loading them from disk if they aren't loaded yet. 
+     * Returns null if not found or if their data can't be read.
      */
     public User getUser(String username) {
-        return users.get(username);
+        User user = users.get(username);
+        if (user != null || !usernames.contains(username)) {
+            return user;
+        }
+        
+        try {
+            user = username.equals("stock") ? loadStockUser() : store().load(username);
+        } catch (IOException e) {
+            System.err.println("Failed to load user " + username + ": " + e.getMessage());
+            return null;
+        }
+        users.put(username, user);
+        watchUser(user);
+        return user;
+    }
+    
+    /**
+     * Drops a user from memory. Called when they log out. Their last changes 
+     * are saved in the background, so this doesn't wait for the disk.
+     */
+    public void releaseUser(String username) {
+        users.remove(username);
+        unwatchUser(username);
+        store().release(username);
     }
     
     /**
      * Adds a new user. Returns false if username already exists.
      */
     public boolean addUser(User user) {
-        if (users.containsKey(user.getUsername())) {
+        if (usernames.contains(user.getUsername())) {
             return false;
         }
+        usernames.add(user.getUsername());
         users.put(user.getUsername(), user);
+        watchUser(user);
+        try {
+            store().create(user);
+        } catch (IOException e) {
+            System.err.println("Failed to create user " + user.getUsername() + ": " + e.getMessage());
+        }
+        writeIndex();
         return true;
     }
     
@@ -75,14 +146,21 @@ public class PhotoApp implements java.io.Serializable {
         if (username.equals("stock") || username.equals("admin")) {
             return false; // Cannot delete stock or admin
         }
-        return users.remove(username) != null;
+        if (!usernames.remove(username)) {
+            return false;
+        }
+        users.remove(username);
+        unwatchUser(username);
+        store().delete(username);
+        writeIndex();
+        return true;
     }
     
     /**
      * Checks if a user exists.
      */
     public boolean userExists(String username) {
-        return users.containsKey(username);
+        return usernames.contains(username);
     }
     
     /**
@@ -99,84 +177,363 @@ public class PhotoApp implements java.io.Serializable {
         if (tagTypes.contains(tagType)) {
             return false;
         }
-        return tagTypes.add(tagType);
+        tagTypes.add(tagType);
+        writeIndex();
+        return true;
     }
     
     /**
-     * Saves all user data to disk.
+     * Saves all user data to disk right away and waits for it. Changes are 
+     * saved in the background shortly after they're made anyway, so this is 
+     * only needed when quitting. Only users that are loaded can have changes, 
+     * and of those only the ones with a big journal get their shard rewritten.
      */
     public void save() throws IOException {
-        File dataDir = new File(DATA_DIR);
-        if (!dataDir.exists()) {
-            dataDir.mkdirs();
+        if (indexDirty) {
+            store().writeIndex(usernames, tagTypes);
+            indexDirty = false;
+        }
+        store().save();
+    }
+    
+    /**
+     * Returns the thumbnails saved on disk, shared by every screen.
+     * 
+     * @return the thumbnail store
+     */
+    public synchronized ThumbnailStore getThumbnailStore() {
+        if (thumbnails == null) {
+            thumbnails = new ThumbnailStore(new File(THUMBNAILS_DIR), THUMBNAILS_MAX_BYTES);
+        }
+        return thumbnails;
+    }
+    
+    /**
+     * Returns the zoom tiles saved on disk, for looking closely at big photos.
+     * 
+     * @return the tile store
+     */
+    public synchronized ThumbnailStore getTileStore() {
+        if (tiles == null) {
+            tiles = new ThumbnailStore(new File(TILES_DIR), TILES_MAX_BYTES);
+        }
+        return tiles;
+    }
+    
+    /**
+     * Saves everything and stops the background saving. Call when the app exits.
+     */
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+        if (thumbnails != null) {
+            thumbnails.close();
+        }
+        if (tiles != null) {
+            tiles.close();
+        }
+        try {
+            save();
+        } finally {
+            store().shutdown();
+        }
+    }
+    
+    /**
+     * Starts watching the folders that loaded users' photos are in, so files 
+     * that are modified, deleted or added while the app runs show up without 
+     * a rescan. Modified files get their date updated, deleted ones are 
+     * flagged as missing (see {@link Photo#isMissing()}), and new files in 
+     * the stock folder are added to the stock album.
+     * 
+     * @param executor runs the model updates - pass Platform::runLater so 
+     *                 they happen on the JavaFX thread
+     */
+    public void startWatching(Executor executor) {
+        if (watcher != null) {
+            return;
+        }
+        try {
+            // The disk is read on the watcher thread; only the results go to
+            // the executor, to be matched up with photos
+            watcher = new FileWatcher(batch -> {
+                FileChanges changes = readFileChanges(batch);
+                executor.execute(() -> applyFileChanges(changes));
+            });
+        } catch (IOException e) {
+            System.err.println("Failed to start watching files: " + e.getMessage());
+            return;
+        }
+        photoFiles = new HashMap<>();
+        for (User user : users.values()) {
+            watchUser(user);
+        }
+    }
+    
+    /**
+     * Watches the folders a user's photos are in and keeps watching new ones 
+     * as photos get added.
+     */
+    private void watchUser(User user) {
+        if (watcher == null || photoFiles.containsKey(user.getUsername())) {
+            return;
+        }
+        photoFiles.put(user.getUsername(), PhotoFiles.build(user, watcher::watch));
+        if (user.getUsername().equals("stock") && stockLibrary != null) {
+            watcher.watch(stockLibrary.getFolder());
+            for (Path folder : stockLibrary.getFolders()) {
+                watcher.watch(folder);
+            }
+        }
+    }
+    
+    private void unwatchUser(String username) {
+        PhotoFiles files = photoFiles == null ? null : photoFiles.remove(username);
+        if (files != null) {
+            files.close();
+        }
+    }
+    
+    /**
+     * What the files in a batch of changes look like now. Read on the 
+     * watcher thread, so applying it doesn't touch the disk.
+     */
+    private static class FileChanges {
+        /** Image files that are there, each read into a new photo to copy from. */
+        final Map<String, Photo> found = new HashMap<>();
+        /** Other files that are there. Not read, since they can't be images. */
+        final Set<String> present = new HashSet<>();
+        /** Paths that aren't there anymore. */
+        final Set<String> gone = new HashSet<>();
+        /** Folders where events were lost, so any photo in them that wasn't found is gone. */
+        final Set<String> folders = new HashSet<>();
+    }
+    
+    /**
+     * Reads every file a batch says changed, and everything in folders 
+     * where events were lost, plus the images in new stock subfolders. Runs 
+     * on the watcher thread and only looks at the disk, not at any user.
+     */
+    private FileChanges readFileChanges(FileWatcher.Batch batch) {
+        FileChanges changes = new FileChanges();
+        StockLibrary stock = stockLibrary;
+        Set<Path> files = new HashSet<>();
+        List<Path> folders = new ArrayList<>();
+        for (Path path : batch.changed) {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                folders.add(path);
+            } else if (!Files.exists(path)) {
+                changes.gone.add(path.toString());
+            } else if (StockLibrary.isImage(path.getFileName().toString())) {
+                files.add(path);
+            } else {
+                changes.present.add(path.toString());
+            }
+        }
+        for (Path folder : batch.folders) {
+            try (Stream<Path> entries = Files.list(folder)) {
+                entries.forEach(entry -> {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        folders.add(entry);
+                    } else if (StockLibrary.isImage(entry.getFileName().toString())) {
+                        files.add(entry);
+                    } else {
+                        changes.present.add(entry.toString());
+                    }
+                });
+                changes.folders.add(folder.toString());
+            } catch (NoSuchFileException e) {
+                // The folder went away, and every photo in it with it
+                changes.folders.add(folder.toString());
+            } catch (IOException e) {
+                System.err.println("Failed to list " + folder + ": " + e.getMessage());
+            }
+        }
+        if (stock != null) {
+            for (Path folder : folders) {
+                if (stock.contains(folder)) {
+                    watcher.watch(folder);
+                }
+            }
+            files.addAll(stock.imageFiles(folders));
+        }
+        for (Photo photo : PhotoIngest.build(new ArrayList<>(files)).photos) {
+            changes.found.put(photo.getFilePath(), photo);
+        }
+        return changes;
+    }
+    
+    /**
+     * Brings watched users up to date with files read by 
+     * {@link #readFileChanges}: found files clear the missing flag and 
+     * update the date and image info, gone ones set it, and new images in 
+     * the stock folder are added to the stock album. Only the photos at the 
+     * changed paths are looked at.
+     */
+    private void applyFileChanges(FileChanges changes) {
+        for (PhotoFiles files : photoFiles.values()) {
+            for (Map.Entry<String, Photo> entry : changes.found.entrySet()) {
+                for (Photo photo : files.get(entry.getKey())) {
+                    photo.setMissing(false);
+                    photo.updateFrom(entry.getValue());
+                }
+            }
+            for (String path : changes.present) {
+                for (Photo photo : files.get(path)) {
+                    photo.setMissing(false);
+                }
+            }
+            for (String path : changes.gone) {
+                for (Photo photo : files.get(path)) {
+                    photo.setMissing(true);
+                }
+            }
+            for (String folder : changes.folders) {
+                for (String path : files.inFolder(folder)) {
+                    if (!changes.found.containsKey(path) && !changes.present.contains(path)) {
+                        for (Photo photo : files.get(path)) {
+                            photo.setMissing(true);
+                        }
+                    }
+                }
+            }
         }
         
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new FileOutputStream(USERS_FILE))) {
-            oos.writeObject(this);
+        User stockUser = users.get("stock");
+        PhotoFiles stockFiles = photoFiles.get("stock");
+        if (stockUser != null && stockFiles != null && stockLibrary != null) {
+            List<Photo> added = new ArrayList<>();
+            for (Photo photo : changes.found.values()) {
+                Path path = Paths.get(photo.getFilePath());
+                if (stockFiles.get(photo.getFilePath()).isEmpty() && stockLibrary.contains(path)
+                        && StockLibrary.isImage(path.getFileName().toString())) {
+                    added.add(photo);
+                }
+            }
+            stockLibrary.addPhotos(stockUser, added);
+        }
+    }
+    
+    /**
+     * Rewrites the user index. It's small, so this happens right away whenever 
+     * a user or tag type is added or removed. If it fails, save() tries again.
+     */
+    private void writeIndex() {
+        try {
+            store().writeIndex(usernames, tagTypes);
+            indexDirty = false;
+        } catch (IOException e) {
+            indexDirty = true;
+            System.err.println("Failed to write user index: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Returns the user store, setting it up the first time.
+     */
+    private UserStore store() {
+        if (store == null) {
+            store = new UserStore(new File(USERS_DIR), new File(INDEX_FILE));
         }
+        return store;
     }
     
     /**
-     * Loads all user data from disk. Creates a new app with stock user if 
-     * nothing exists yet.
+     * Loads the user index from disk. Users themselves are loaded later, when 
+     * someone logs in. An old users.dat gets split into shards the first time. 
+     * Creates a new app with just the stock user if nothing exists yet.
      */
     public static PhotoApp load() {
-        File usersFile = new File(USERS_FILE);
-        if (!usersFile.exists()) {
-            PhotoApp app = new PhotoApp();
-            app.initializeStockUser();
-            return app;
+        PhotoApp app = new PhotoApp();
+        UserStore store = app.store();
+        
+        if (store.hasIndex()) {
+            try {
+                store.readIndex(app.usernames, app.tagTypes);
+                return app;
+            } catch (IOException e) {
+                System.err.println("Failed to read user index, rebuilding it: " + e.getMessage());
+            }
         }
         
+        if (new File(USERS_FILE).exists()) {
+            app.migrateLegacyUsers();
+        } else {
+            app.usernames.addAll(store.listShards());
+            app.writeIndex();
+        }
+        return app;
+    }
+    
+    /**
+     * One-time move from the old single users.dat (plus its journal) to one 
+     * shard per user. The old files are renamed afterwards rather than deleted.
+     */
+    private void migrateLegacyUsers() {
+        File usersFile = new File(USERS_FILE);
+        File journalFile = new File(JOURNAL_FILE);
+        PhotoApp legacy;
         try (ObjectInputStream ois = new ObjectInputStream(
-                new FileInputStream(USERS_FILE))) {
-            PhotoApp app = (PhotoApp) ois.readObject();
-            // Always refresh stock user to load any new photos
-            app.initializeStockUser();
-            return app;
+                new FileInputStream(usersFile))) {
+            legacy = (PhotoApp) ois.readObject();
         } catch (IOException | ClassNotFoundException e) {
-            // If loading fails, create a new app with stock user
-            PhotoApp app = new PhotoApp();
-            app.initializeStockUser();
-            return app;
+            System.err.println("Failed to read old users.dat: " + e.getMessage());
+            return;
+        }
+        // "Add Photo" used to make a new photo each time, so the same file 
+        // could be a different photo in each album
+        for (User user : legacy.users.values()) {
+            user.mergeDuplicatePhotos();
         }
+        ChangeJournal.replay(journalFile, legacy.journalGeneration, legacy.users, legacy.tagTypes);
+        
+        try {
+            store().createAll(legacy.users.values());
+        } catch (IOException e) {
+            System.err.println("Failed to migrate users: " + e.getMessage());
+            return;
+        }
+        usernames.addAll(legacy.users.keySet());
+        tagTypes.clear();
+        tagTypes.addAll(legacy.tagTypes);
+        writeIndex();
+        
+        usersFile.renameTo(new File(USERS_FILE + ".migrated"));
+        journalFile.renameTo(new File(JOURNAL_FILE + ".migrated"));
     }
     
     /**
-     * Sets up the stock user and loads any photos from the data directory.
+     * Loads the stock user from their shard, like any other user, so captions 
+     * and tags on stock photos are kept. The stock album is then brought up to 
+     * date with the photos in the data directory, but only if the directory 
+     * changed since last time (see {@link StockLibrary}).
      */
-    private void initializeStockUser() {
-        User stockUser = new User("stock", "stock");
-        Album stockAlbum = new Album("stock");
-        
-        // First try data/stock/ subdirectory, then fall back to data/ directory
-        File[] searchDirs = {
-            new File(DATA_DIR + File.separator + "stock"),
-            new File(DATA_DIR)
-        };
+    private User loadStockUser() throws IOException {
+        UserStore store = store();
+        User stockUser;
+        if (store.exists("stock")) {
+            stockUser = store.load("stock");
+        } else {
+            stockUser = new User("stock", "stock");
+            store.create(stockUser);
+        }
         
-        for (File searchDir : searchDirs) {
-            if (searchDir.exists() && searchDir.isDirectory()) {
-                File[] files = searchDir.listFiles((dir, name) -> {
-                    String lower = name.toLowerCase();
-                    return lower.endsWith(".jpg") || lower.endsWith(".jpeg") || 
-                           lower.endsWith(".png") || lower.endsWith(".gif") || 
-                           lower.endsWith(".bmp");
-                });
-                
-                if (files != null && files.length > 0) {
-                    for (File file : files) {
-                        Photo photo = new Photo(file.getAbsolutePath());
-                        stockAlbum.addPhoto(photo);
-                    }
-                    break; // Found photos, no need to check other directories
-                }
+        StockLibrary library = new StockLibrary(new File(DATA_DIR), new File(STOCK_FINGERPRINT_FILE));
+        StockLibrary.Scan scan = library.scan();
+        if (!library.isUnchanged(scan)) {
+            if (library.reconcile(stockUser, scan)) {
+                // The fingerprint can only be trusted once the changes are on disk
+                store.save();
+            }
+            if (scan.imported != null) {
+                System.err.println("Imported " + scan.imported + " from " + scan.dir);
             }
+            library.saveFingerprint(scan);
         }
-        
-        stockUser.addAlbum(stockAlbum);
-        users.put("stock", stockUser);
+        stockLibrary = library;
+        return stockUser;
     }
 }
 
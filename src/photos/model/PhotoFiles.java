@@ -0,0 +1,188 @@
+package photos.model;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Finds a user's photos by file path, and by the folder their files are in,
+ * so a batch of file changes can be matched up with photos without going
+ * through every album. Built once from the user's albums and then kept up to
+ * date from their change events, like {@link SearchIndex}. A photo in
+ * several albums stays until it's in none of them.
+ * 
+ * Only used from the JavaFX thread.
+ * 
+ * @author Photos Team
+ */
+class PhotoFiles implements ModelListener {
+    private final User user;
+    /** Told about each folder the first time one of the user's photos is in it. */
+    private final Consumer<Path> newFolder;
+    /** The photos at each path, once for every album they're in. */
+    private final Map<String, List<Photo>> byPath = new HashMap<>();
+    /** The paths in each folder that have photos. */
+    private final Map<String, Set<String>> byFolder = new HashMap<>();
+    
+    private PhotoFiles(User user, Consumer<Path> newFolder) {
+        this.user = user;
+        this.newFolder = newFolder;
+    }
+    
+    /**
+     * Indexes all of a user's photos and starts listening for changes.
+     * 
+     * @param user the user
+     * @param newFolder called with each folder the user's photos are in, now
+     *                  and whenever a photo turns up in a new one
+     * @return the index
+     */
+    static PhotoFiles build(User user, Consumer<Path> newFolder) {
+        PhotoFiles files = new PhotoFiles(user, newFolder);
+        for (Album album : user.getAlbums()) {
+            for (Photo photo : album.getPhotos()) {
+                files.add(photo.getFilePath(), photo);
+            }
+        }
+        user.addListener(files);
+        return files;
+    }
+    
+    /**
+     * Stops following the user's changes.
+     */
+    void close() {
+        user.removeListener(this);
+    }
+    
+    /**
+     * Returns the user's photos for a file, each once.
+     * 
+     * @param path the file's path
+     * @return the photos, usually one, or none
+     */
+    List<Photo> get(String path) {
+        List<Photo> photos = byPath.get(path);
+        if (photos == null) {
+            return List.of();
+        }
+        List<Photo> distinct = new ArrayList<>(1);
+        for (Photo photo : photos) {
+            if (!containsSame(distinct, photo)) {
+                distinct.add(photo);
+            }
+        }
+        return distinct;
+    }
+    
+    /**
+     * Returns the paths of the user's photos in a folder, not counting its
+     * subfolders.
+     * 
+     * @param folder the folder's path
+     * @return the paths
+     */
+    List<String> inFolder(String folder) {
+        Set<String> paths = byFolder.get(folder);
+        return paths == null ? List.of() : new ArrayList<>(paths);
+    }
+    
+    @Override
+    public void albumAdded(User user, Album album) {
+        for (Photo photo : album.getPhotos()) {
+            add(photo.getFilePath(), photo);
+        }
+    }
+    
+    @Override
+    public void albumRemoved(User user, Album album) {
+        for (Photo photo : album.getPhotos()) {
+            remove(photo.getFilePath(), photo);
+        }
+    }
+    
+    @Override
+    public void photoAdded(User user, Album album, Photo photo) {
+        add(photo.getFilePath(), photo);
+    }
+    
+    @Override
+    public void photoRemoved(User user, Album album, Photo photo) {
+        remove(photo.getFilePath(), photo);
+    }
+    
+    @Override
+    public void filePathChanged(User user, Photo photo, String oldPath) {
+        // Moved over once for each album it's in
+        int albums = 0;
+        while (remove(oldPath, photo)) {
+            albums++;
+        }
+        for (int i = 0; i < albums; i++) {
+            add(photo.getFilePath(), photo);
+        }
+    }
+    
+    private void add(String path, Photo photo) {
+        byPath.computeIfAbsent(path, p -> new ArrayList<>(1)).add(photo);
+        String folder = folderOf(path);
+        if (folder != null) {
+            Set<String> paths = byFolder.get(folder);
+            if (paths == null) {
+                paths = new HashSet<>();
+                byFolder.put(folder, paths);
+                newFolder.accept(Paths.get(folder));
+            }
+            paths.add(path);
+        }
+    }
+    
+    /**
+     * Drops one of a photo's places at a path, returning false if it had none.
+     */
+    private boolean remove(String path, Photo photo) {
+        List<Photo> photos = byPath.get(path);
+        if (photos == null) {
+            return false;
+        }
+        for (int i = 0; i < photos.size(); i++) {
+            if (photos.get(i) == photo) {
+                photos.remove(i);
+                if (photos.isEmpty()) {
+                    byPath.remove(path);
+                    String folder = folderOf(path);
+                    Set<String> paths = folder == null ? null : byFolder.get(folder);
+                    if (paths != null) {
+                        paths.remove(path);
+                        if (paths.isEmpty()) {
+                            byFolder.remove(folder);
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static boolean containsSame(List<Photo> photos, Photo photo) {
+        for (Photo other : photos) {
+            if (other == photo) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static String folderOf(String path) {
+        Path parent = Paths.get(path).getParent();
+        return parent == null ? null : parent.toString();
+    }
+}
+
@@ -0,0 +1,213 @@
+package photos.model;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds image files in a folder tree and builds photos for them. Big stock
+ * folders are mostly waiting on the disk, so the work is spread over virtual
+ * threads: every subfolder is listed on its own thread, and the files are
+ * read in batches, also in parallel. Files are picked by name alone while
+ * listing, so only the files that actually become photos get read.
+ * 
+ * @author Photos Team
+ */
+class PhotoIngest {
+    /** How many files one thread reads before handing back its photos. */
+    private static final int BATCH_SIZE = 256;
+    
+    /**
+     * The photos that were built, and how long it took.
+     */
+    static class Result {
+        final List<Photo> photos;
+        final long nanos;
+        
+        Result(List<Photo> photos, long nanos) {
+            this.photos = photos;
+            this.nanos = nanos;
+        }
+        
+        /**
+         * Returns how many files were read per second.
+         */
+        double filesPerSecond() {
+            return nanos == 0 ? 0 : photos.size() * 1e9 / nanos;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d photos in %d ms (%.0f files/s)",
+                photos.size(), nanos / 1_000_000, filesPerSecond());
+        }
+    }
+    
+    private PhotoIngest() {
+    }
+    
+    /**
+     * Lists the image files in a folder, and in all of its subfolders if
+     * recursive is set. Symbolic links to folders aren't followed.
+     * 
+     * @param root the folder to look in
+     * @param recursive whether to look in subfolders too
+     * @return the image files found, in no particular order
+     */
+    static List<Path> discover(Path root, boolean recursive) {
+        return discover(root, recursive, new ConcurrentLinkedQueue<>());
+    }
+    
+    /**
+     * Same as {@link #discover(Path, boolean)}, but also collects every folder
+     * that was listed, including the root.
+     */
+    static List<Path> discover(Path root, boolean recursive, Queue<Path> folders) {
+        Queue<Path> found = new ConcurrentLinkedQueue<>();
+        if (!Files.isDirectory(root)) {
+            return new ArrayList<>();
+        }
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            walk(root, recursive, executor, found, folders);
+        }
+        return new ArrayList<>(found);
+    }
+    
+    /**
+     * Lists one folder, and waits for its subfolders to be listed on their own
+     * threads. Waiting is cheap on a virtual thread.
+     */
+    private static void walk(Path dir, boolean recursive, ExecutorService executor,
+            Queue<Path> found, Queue<Path> folders) {
+        folders.add(dir);
+        List<Future<?>> subfolders = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                if (StockLibrary.isImage(entry.getFileName().toString())) {
+                    found.add(entry);
+                } else if (recursive && Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    subfolders.add(executor.submit(() -> walk(entry, true, executor, found, folders)));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to list " + dir + ": " + e.getMessage());
+        }
+        
+        for (Future<?> subfolder : subfolders) {
+            try {
+                subfolder.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                System.err.println("Failed to list a folder in " + dir + ": " + e.getCause());
+            }
+        }
+    }
+    
+    /**
+     * Builds a photo for each file, reading each file's attributes once. The
+     * photos come back in the same order as the files.
+     * 
+     * @param files the image files
+     * @return the photos and how long it took
+     */
+    static Result build(List<Path> files) {
+        long start = System.nanoTime();
+        Photo[] photos = new Photo[files.size()];
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int from = 0; from < photos.length; from += BATCH_SIZE) {
+                int batchStart = from;
+                int batchEnd = Math.min(from + BATCH_SIZE, photos.length);
+                executor.execute(() -> {
+                    for (int i = batchStart; i < batchEnd; i++) {
+                        photos[i] = readPhoto(files.get(i));
+                    }
+                });
+            }
+        }
+        return new Result(Arrays.asList(photos), System.nanoTime() - start);
+    }
+    
+    /**
+     * Reads the format, size and orientation of photos saved before those
+     * were recorded, in parallel. Photos whose files are missing are left
+     * alone, to be read when they turn up again.
+     * 
+     * @param photos the photos to check; ones already read are skipped
+     * @return the photos that were read
+     */
+    static List<Photo> readImageInfo(Collection<Photo> photos) {
+        List<Photo> unread = new ArrayList<>();
+        for (Photo photo : photos) {
+            if (photo.getStoredOrientation() == 0) {
+                unread.add(photo);
+            }
+        }
+        Queue<Photo> read = new ConcurrentLinkedQueue<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int from = 0; from < unread.size(); from += BATCH_SIZE) {
+                List<Photo> batch = unread.subList(from, Math.min(from + BATCH_SIZE, unread.size()));
+                executor.execute(() -> {
+                    for (Photo photo : batch) {
+                        Path file = Path.of(photo.getFilePath());
+                        if (!Files.isRegularFile(file)) {
+                            continue;
+                        }
+                        ImageHeader header = ImageHeader.read(file);
+                        if (header != null) {
+                            photo.setImageInfo(header.format, header.width, header.height, header.orientation);
+                        } else {
+                            photo.setImageInfo(null, 0, 0, 1);
+                        }
+                        read.add(photo);
+                    }
+                });
+            }
+        }
+        return new ArrayList<>(read);
+    }
+    
+    /**
+     * Builds one photo. Does the same thing as {@link Photo#Photo(String)},
+     * but with one attribute read instead of separate exists and lastModified
+     * calls.
+     */
+    private static Photo readPhoto(Path file) {
+        String path = file.toAbsolutePath().toString();
+        ImageHeader header = ImageHeader.read(file);
+        LocalDateTime dateTaken = header == null ? null : header.dateTaken;
+        if (dateTaken == null) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                dateTaken = LocalDateTime.ofInstant(
+                    attributes.lastModifiedTime().toInstant(), ZoneId.systemDefault());
+            } catch (IOException e) {
+                dateTaken = LocalDateTime.now();
+            }
+        }
+        Photo photo = new Photo(path, "", dateTaken);
+        if (header != null) {
+            photo.setImageInfo(header.format, header.width, header.height, header.orientation);
+        } else {
+            photo.setImageInfo(null, 0, 0, 1);
+        }
+        return photo;
+    }
+}
+
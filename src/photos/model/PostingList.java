@@ -0,0 +1,538 @@
+package photos.model;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A sorted set of photo ids, stored the way roaring bitmaps do it. Ids are
+ * split into chunks by their high 16 bits. A chunk with only a few ids keeps
+ * the low 16 bits in a sorted char array (2 bytes per id); once it has more
+ * than {@value #ARRAY_MAX} it switches to a 65536-bit bitmap (8 KB, however
+ * many ids). AND and OR work chunk by chunk, so they skip whole ranges of ids
+ * that only one side has, and bitmap chunks combine 64 ids at a time.
+ * 
+ * @author Photos Team
+ */
+public class PostingList {
+    /** Past this many ids a bitmap is smaller than an array. */
+    private static final int ARRAY_MAX = 4096;
+    
+    private int[] keys = new int[0];
+    private Chunk[] chunks = new Chunk[0];
+    private int chunkCount;
+    private int size;
+    
+    /**
+     * The ids that share the same high 16 bits.
+     */
+    private static class Chunk {
+        /** Sorted low bits, used while the chunk is small. */
+        char[] values;
+        /** Used instead of values once the chunk is big. */
+        long[] bitmap;
+        int size;
+        
+        static Chunk ofArray(char[] values, int size) {
+            Chunk chunk = new Chunk();
+            chunk.values = values;
+            chunk.size = size;
+            return chunk;
+        }
+        
+        static Chunk ofBitmap(long[] bitmap, int size) {
+            Chunk chunk = new Chunk();
+            chunk.bitmap = bitmap;
+            chunk.size = size;
+            return chunk.size <= ARRAY_MAX ? chunk.toArray() : chunk;
+        }
+        
+        boolean contains(char low) {
+            if (bitmap != null) {
+                return (bitmap[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(values, 0, size, low) >= 0;
+        }
+        
+        boolean add(char low) {
+            if (bitmap != null) {
+                long bit = 1L << low;
+                if ((bitmap[low >>> 6] & bit) != 0) {
+                    return false;
+                }
+                bitmap[low >>> 6] |= bit;
+                size++;
+                return true;
+            }
+            int index = Arrays.binarySearch(values, 0, size, low);
+            if (index >= 0) {
+                return false;
+            }
+            if (size == ARRAY_MAX) {
+                toBitmap();
+                return add(low);
+            }
+            index = -index - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, size * 2)));
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = low;
+            size++;
+            return true;
+        }
+        
+        boolean remove(char low) {
+            if (bitmap != null) {
+                long bit = 1L << low;
+                if ((bitmap[low >>> 6] & bit) == 0) {
+                    return false;
+                }
+                bitmap[low >>> 6] &= ~bit;
+                size--;
+                if (size <= ARRAY_MAX / 2) {
+                    // Only switch back well under the limit, so ids going in
+                    // and out around it don't keep converting
+                    Chunk array = toArray();
+                    values = array.values;
+                    bitmap = null;
+                }
+                return true;
+            }
+            int index = Arrays.binarySearch(values, 0, size, low);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            return true;
+        }
+        
+        private void toBitmap() {
+            bitmap = new long[1024];
+            for (int i = 0; i < size; i++) {
+                bitmap[values[i] >>> 6] |= 1L << values[i];
+            }
+            values = null;
+        }
+        
+        private Chunk toArray() {
+            char[] array = new char[Math.max(size, 4)];
+            int n = 0;
+            for (int word = 0; word < bitmap.length; word++) {
+                long bits = bitmap[word];
+                while (bits != 0) {
+                    array[n++] = (char) ((word << 6) + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+            return ofArray(array, n);
+        }
+        
+        Chunk and(Chunk other) {
+            if (bitmap != null && other.bitmap != null) {
+                long[] result = new long[1024];
+                int count = 0;
+                for (int i = 0; i < 1024; i++) {
+                    result[i] = bitmap[i] & other.bitmap[i];
+                    count += Long.bitCount(result[i]);
+                }
+                return ofBitmap(result, count);
+            }
+            if (bitmap != null || other.bitmap != null) {
+                Chunk array = bitmap == null ? this : other;
+                Chunk bits = bitmap == null ? other : this;
+                char[] result = new char[array.size];
+                int n = 0;
+                for (int i = 0; i < array.size; i++) {
+                    if (bits.contains(array.values[i])) {
+                        result[n++] = array.values[i];
+                    }
+                }
+                return ofArray(result, n);
+            }
+            char[] result = new char[Math.min(size, other.size)];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size) {
+                if (values[i] < other.values[j]) {
+                    i++;
+                } else if (values[i] > other.values[j]) {
+                    j++;
+                } else {
+                    result[n++] = values[i];
+                    i++;
+                    j++;
+                }
+            }
+            return ofArray(result, n);
+        }
+        
+        int andCount(Chunk other) {
+            if (bitmap != null && other.bitmap != null) {
+                int count = 0;
+                for (int i = 0; i < 1024; i++) {
+                    count += Long.bitCount(bitmap[i] & other.bitmap[i]);
+                }
+                return count;
+            }
+            if (bitmap != null || other.bitmap != null) {
+                Chunk array = bitmap == null ? this : other;
+                Chunk bits = bitmap == null ? other : this;
+                int count = 0;
+                for (int i = 0; i < array.size; i++) {
+                    if (bits.contains(array.values[i])) {
+                        count++;
+                    }
+                }
+                return count;
+            }
+            Chunk small = size <= other.size ? this : other;
+            Chunk large = small == this ? other : this;
+            int count = 0;
+            if (small.size * 16 < large.size) {
+                // Far apart in size: look each small value up instead of walking both
+                int from = 0;
+                for (int i = 0; i < small.size && from < large.size; i++) {
+                    int index = Arrays.binarySearch(large.values, from, large.size, small.values[i]);
+                    if (index >= 0) {
+                        count++;
+                        from = index + 1;
+                    } else {
+                        from = -index - 1;
+                    }
+                }
+                return count;
+            }
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size) {
+                if (values[i] < other.values[j]) {
+                    i++;
+                } else if (values[i] > other.values[j]) {
+                    j++;
+                } else {
+                    count++;
+                    i++;
+                    j++;
+                }
+            }
+            return count;
+        }
+        
+        Chunk or(Chunk other) {
+            if (bitmap == null && other.bitmap == null && size + other.size <= ARRAY_MAX) {
+                char[] result = new char[size + other.size];
+                int n = 0;
+                int i = 0;
+                int j = 0;
+                while (i < size || j < other.size) {
+                    if (j == other.size || (i < size && values[i] < other.values[j])) {
+                        result[n++] = values[i++];
+                    } else if (i == size || values[i] > other.values[j]) {
+                        result[n++] = other.values[j++];
+                    } else {
+                        result[n++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+                return ofArray(result, n);
+            }
+            long[] result = new long[1024];
+            for (Chunk chunk : new Chunk[] {this, other}) {
+                if (chunk.bitmap != null) {
+                    for (int k = 0; k < 1024; k++) {
+                        result[k] |= chunk.bitmap[k];
+                    }
+                } else {
+                    for (int k = 0; k < chunk.size; k++) {
+                        result[chunk.values[k] >>> 6] |= 1L << chunk.values[k];
+                    }
+                }
+            }
+            int count = 0;
+            for (long word : result) {
+                count += Long.bitCount(word);
+            }
+            return ofBitmap(result, count);
+        }
+        
+        Chunk andNot(Chunk other) {
+            if (bitmap != null) {
+                long[] result = bitmap.clone();
+                if (other.bitmap != null) {
+                    for (int i = 0; i < 1024; i++) {
+                        result[i] &= ~other.bitmap[i];
+                    }
+                } else {
+                    for (int i = 0; i < other.size; i++) {
+                        result[other.values[i] >>> 6] &= ~(1L << other.values[i]);
+                    }
+                }
+                int count = 0;
+                for (long word : result) {
+                    count += Long.bitCount(word);
+                }
+                return ofBitmap(result, count);
+            }
+            char[] result = new char[Math.max(size, 4)];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (!other.contains(values[i])) {
+                    result[n++] = values[i];
+                }
+            }
+            return ofArray(result, n);
+        }
+        
+        Chunk copy() {
+            Chunk chunk = new Chunk();
+            chunk.values = values == null ? null : values.clone();
+            chunk.bitmap = bitmap == null ? null : bitmap.clone();
+            chunk.size = size;
+            return chunk;
+        }
+        
+        void forEach(int high, IntConsumer action) {
+            if (bitmap != null) {
+                for (int word = 0; word < bitmap.length; word++) {
+                    long bits = bitmap[word];
+                    while (bits != 0) {
+                        action.accept(high | (word << 6) + Long.numberOfTrailingZeros(bits));
+                        bits &= bits - 1;
+                    }
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    action.accept(high | values[i]);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Creates an empty list.
+     */
+    public PostingList() {
+    }
+    
+    /**
+     * Adds an id.
+     * 
+     * @param id a non-negative id
+     * @return true if it wasn't in the list yet
+     */
+    public boolean add(int id) {
+        int index = findChunk(id >>> 16);
+        if (index < 0) {
+            index = -index - 1;
+            insertChunk(index, id >>> 16, Chunk.ofArray(new char[4], 0));
+        }
+        if (chunks[index].add((char) id)) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Removes an id.
+     * 
+     * @param id the id to remove
+     * @return true if it was in the list
+     */
+    public boolean remove(int id) {
+        int index = findChunk(id >>> 16);
+        if (index < 0 || !chunks[index].remove((char) id)) {
+            return false;
+        }
+        size--;
+        if (chunks[index].size == 0) {
+            System.arraycopy(keys, index + 1, keys, index, chunkCount - index - 1);
+            System.arraycopy(chunks, index + 1, chunks, index, chunkCount - index - 1);
+            chunkCount--;
+            chunks[chunkCount] = null;
+        }
+        return true;
+    }
+    
+    /**
+     * Checks whether an id is in the list.
+     */
+    public boolean contains(int id) {
+        int index = findChunk(id >>> 16);
+        return index >= 0 && chunks[index].contains((char) id);
+    }
+    
+    /**
+     * Returns how many ids are in the list.
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Returns true if the list has no ids.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * Runs an action for every id, smallest first.
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i].forEach(keys[i] << 16, action);
+        }
+    }
+    
+    /**
+     * Returns the ids as a sorted array.
+     */
+    public int[] toArray() {
+        int[] result = new int[size];
+        int[] n = {0};
+        forEach(id -> result[n[0]++] = id);
+        return result;
+    }
+    
+    /**
+     * Returns a copy that can be changed without affecting this list.
+     */
+    public PostingList copy() {
+        PostingList copy = new PostingList();
+        copy.keys = Arrays.copyOf(keys, chunkCount);
+        copy.chunks = new Chunk[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            copy.chunks[i] = chunks[i].copy();
+        }
+        copy.chunkCount = chunkCount;
+        copy.size = size;
+        return copy;
+    }
+    
+    /**
+     * Returns the ids that are in both lists.
+     */
+    public static PostingList and(PostingList a, PostingList b) {
+        PostingList result = new PostingList();
+        int i = 0;
+        int j = 0;
+        while (i < a.chunkCount && j < b.chunkCount) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                Chunk chunk = a.chunks[i].and(b.chunks[j]);
+                if (chunk.size > 0) {
+                    result.appendChunk(a.keys[i], chunk);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Counts the ids that are in both lists, without building the list.
+     */
+    public static int andCount(PostingList a, PostingList b) {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.chunkCount && j < b.chunkCount) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                count += a.chunks[i].andCount(b.chunks[j]);
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Returns the ids that are in either list.
+     */
+    public static PostingList or(PostingList a, PostingList b) {
+        PostingList result = new PostingList();
+        int i = 0;
+        int j = 0;
+        while (i < a.chunkCount || j < b.chunkCount) {
+            if (j == b.chunkCount || (i < a.chunkCount && a.keys[i] < b.keys[j])) {
+                result.appendChunk(a.keys[i], a.chunks[i].copy());
+                i++;
+            } else if (i == a.chunkCount || a.keys[i] > b.keys[j]) {
+                result.appendChunk(b.keys[j], b.chunks[j].copy());
+                j++;
+            } else {
+                result.appendChunk(a.keys[i], a.chunks[i].or(b.chunks[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the ids that are in the first list but not the second.
+     */
+    public static PostingList andNot(PostingList a, PostingList b) {
+        PostingList result = new PostingList();
+        int j = 0;
+        for (int i = 0; i < a.chunkCount; i++) {
+            while (j < b.chunkCount && b.keys[j] < a.keys[i]) {
+                j++;
+            }
+            Chunk chunk = j < b.chunkCount && b.keys[j] == a.keys[i]
+                ? a.chunks[i].andNot(b.chunks[j]) : a.chunks[i].copy();
+            if (chunk.size > 0) {
+                result.appendChunk(a.keys[i], chunk);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Makes a list from ids in any order.
+     */
+    public static PostingList of(int[] ids) {
+        int[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        PostingList result = new PostingList();
+        for (int id : sorted) {
+            result.add(id);
+        }
+        return result;
+    }
+    
+    private int findChunk(int key) {
+        return Arrays.binarySearch(keys, 0, chunkCount, key);
+    }
+    
+    private void insertChunk(int index, int key, Chunk chunk) {
+        if (chunkCount == keys.length) {
+            int capacity = Math.max(4, chunkCount * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            chunks = Arrays.copyOf(chunks, capacity);
+        }
+        System.arraycopy(keys, index, keys, index + 1, chunkCount - index);
+        System.arraycopy(chunks, index, chunks, index + 1, chunkCount - index);
+        keys[index] = key;
+        chunks[index] = chunk;
+        chunkCount++;
+    }
+    
+    private void appendChunk(int key, Chunk chunk) {
+        insertChunk(chunkCount, key, chunk);
+        size += chunk.size;
+    }
+}
+
@@ -0,0 +1,503 @@
+package photos.model;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A parsed search query: tag, date, caption and album terms joined with AND,
+ * OR and NOT. Build one with {@link #parse(String)} and run it with
+ * {@link SearchIndex#find(Query)}.
+ * 
+ * Running a query is planned from the index. Every term can estimate how
+ * many photos it matches (exactly for tags, dates and albums), and an AND
+ * starts from its smallest term. Each term after that either gets looked up
+ * in the index and intersected, or, once the photos left are fewer than the
+ * term would look up, is checked against just those photos. Text terms use
+ * trigram lists, which only bound how many photos match, and text under
+ * three letters has no index at all, so those go last.
+ * 
+ * @author Photos Team
+ */
+public abstract class Query {
+    
+    Query() {
+    }
+    
+    /**
+     * Parses a query. See {@link QueryParser} for the syntax.
+     * 
+     * @param text the query
+     * @return the parsed query
+     * @throws IllegalArgumentException if the query has a syntax error
+     */
+    public static Query parse(String text) {
+        return new QueryParser(text).parse();
+    }
+    
+    /**
+     * Returns about how many photos this matches. Exact for index lookups.
+     */
+    abstract int estimate(SearchIndex index);
+    
+    /**
+     * Returns true if this can be answered from the index without checking
+     * every photo.
+     */
+    abstract boolean isIndexed();
+    
+    /**
+     * Returns true if checking one photo is cheap, so filtering a few photos
+     * beats a lookup.
+     */
+    abstract boolean canMatch();
+    
+    /**
+     * Finds the ids of all matching photos. The result may belong to the
+     * index, so it must not be changed.
+     */
+    abstract PostingList evaluate(SearchIndex index);
+    
+    /**
+     * Checks one photo.
+     */
+    abstract boolean matches(SearchIndex index, int id);
+    
+    /**
+     * Returns the query in its normal form, which two queries that mean the
+     * same thing written differently (spacing, keyword case) share.
+     */
+    @Override
+    public abstract String toString();
+    
+    /**
+     * Photos that have a tag.
+     */
+    static class HasTag extends Query {
+        final Tag tag;
+        
+        HasTag(Tag tag) {
+            this.tag = tag;
+        }
+        
+        @Override
+        int estimate(SearchIndex index) {
+            return index.postings(tag).size();
+        }
+        
+        @Override
+        boolean isIndexed() {
+            return true;
+        }
+        
+        @Override
+        boolean canMatch() {
+            return true;
+        }
+        
+        @Override
+        PostingList evaluate(SearchIndex index) {
+            return index.postings(tag);
+        }
+        
+        @Override
+        boolean matches(SearchIndex index, int id) {
+            return index.postings(tag).contains(id);
+        }
+        
+        @Override
+        public String toString() {
+            return quote(tag.getName()) + "=" + quote(tag.getValue());
+        }
+    }
+    
+    /**
+     * Photos taken from start to end, both included. Either end may be open.
+     */
+    static class DateRange extends Query {
+        private static final DateTimeFormatter FORMAT = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+        
+        final LocalDateTime start;
+        final LocalDateTime end;
+        
+        DateRange(LocalDateTime start, LocalDateTime end) {
+            this.start = start;
+            this.end = end;
+        }
+        
+        private long startMillis() {
+            return start == null ? Long.MIN_VALUE : SearchIndex.toMillis(start);
+        }
+        
+        private long endMillis() {
+            return end == null ? Long.MAX_VALUE : SearchIndex.toMillis(end);
+        }
+        
+        @Override
+        int estimate(SearchIndex index) {
+            return index.countDates(startMillis(), endMillis());
+        }
+        
+        @Override
+        boolean isIndexed() {
+            return true;
+        }
+        
+        @Override
+        boolean canMatch() {
+            return true;
+        }
+        
+        @Override
+        PostingList evaluate(SearchIndex index) {
+            return index.dateIds(startMillis(), endMillis());
+        }
+        
+        @Override
+        boolean matches(SearchIndex index, int id) {
+            long millis = index.dateAt(id);
+            return millis >= startMillis() && millis <= endMillis();
+        }
+        
+        @Override
+        public String toString() {
+            return "date:" + (start == null ? "" : start.format(FORMAT)) + ".."
+                + (end == null ? "" : end.format(FORMAT));
+        }
+    }
+    
+    /**
+     * Photos whose caption, file name or either contains some text, ignoring
+     * case and punctuation. A prefix match only counts at the start of a word.
+     */
+    static class TextMatch extends Query {
+        /** "caption", "name", or null for either. */
+        final String field;
+        final String term;
+        final boolean prefix;
+        
+        TextMatch(String field, String text, boolean prefix) {
+            this.field = field;
+            this.term = TrigramIndex.term(text, prefix);
+            this.prefix = prefix;
+        }
+        
+        @Override
+        int estimate(SearchIndex index) {
+            return index.countText(field, term);
+        }
+        
+        @Override
+        boolean isIndexed() {
+            // Shorter terms have no trigram to look up
+            return term.length() >= 3;
+        }
+        
+        @Override
+        boolean canMatch() {
+            return true;
+        }
+        
+        @Override
+        PostingList evaluate(SearchIndex index) {
+            return index.textIds(field, term);
+        }
+        
+        @Override
+        boolean matches(SearchIndex index, int id) {
+            return index.textMatches(field, id, term);
+        }
+        
+        @Override
+        public String toString() {
+            String text = quote(prefix ? term.trim() : term) + (prefix ? "*" : "");
+            return field == null ? text : field + ":" + text;
+        }
+    }
+    
+    /**
+     * Photos in an album.
+     */
+    static class InAlbum extends Query {
+        final String name;
+        
+        InAlbum(String name) {
+            this.name = name;
+        }
+        
+        @Override
+        int estimate(SearchIndex index) {
+            return index.albumIds(name).size();
+        }
+        
+        @Override
+        boolean isIndexed() {
+            return true;
+        }
+        
+        @Override
+        boolean canMatch() {
+            return true;
+        }
+        
+        @Override
+        PostingList evaluate(SearchIndex index) {
+            return index.albumIds(name);
+        }
+        
+        @Override
+        boolean matches(SearchIndex index, int id) {
+            return index.albumIds(name).contains(id);
+        }
+        
+        @Override
+        public String toString() {
+            return "album:" + quote(name);
+        }
+    }
+    
+    /**
+     * Photos that match every part.
+     */
+    static class And extends Query {
+        final List<Query> parts;
+        
+        And(List<Query> parts) {
+            this.parts = parts;
+        }
+        
+        @Override
+        int estimate(SearchIndex index) {
+            int min = Integer.MAX_VALUE;
+            for (Query part : parts) {
+                min = Math.min(min, part.estimate(index));
+            }
+            return min;
+        }
+        
+        @Override
+        boolean isIndexed() {
+            for (Query part : parts) {
+                if (part.isIndexed()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        @Override
+        boolean canMatch() {
+            for (Query part : parts) {
+                if (!part.canMatch()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        PostingList evaluate(SearchIndex index) {
+            // Start from the smallest part; parts without an index go last
+            int[] estimates = new int[parts.size()];
+            Integer[] order = new Integer[parts.size()];
+            for (int i = 0; i < order.length; i++) {
+                Query part = parts.get(i);
+                estimates[i] = part.isIndexed() ? part.estimate(index) : Integer.MAX_VALUE;
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingInt(i -> estimates[i]));
+            
+            PostingList result = null;
+            for (int i : order) {
+                Query part = parts.get(i);
+                if (result == null) {
+                    result = part.evaluate(index);
+                } else if (result.isEmpty()) {
+                    break;
+                } else if (part instanceof Not not) {
+                    // Looking up what to take out costs the inner part's size
+                    result = part.canMatch() && (!part.isIndexed() || result.size() < not.part.estimate(index))
+                        ? filter(index, result, part)
+                        : PostingList.andNot(result, not.part.evaluate(index));
+                } else if (part.canMatch() && (!part.isIndexed() || result.size() < estimates[i])) {
+                    result = filter(index, result, part);
+                } else {
+                    result = PostingList.and(result, part.evaluate(index));
+                }
+            }
+            return result;
+        }
+        
+        @Override
+        boolean matches(SearchIndex index, int id) {
+            for (Query part : parts) {
+                if (!part.matches(index, id)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        public String toString() {
+            return join(parts, " AND ");
+        }
+    }
+    
+    /**
+     * Photos that match any part.
+     */
+    static class Or extends Query {
+        final List<Query> parts;
+        
+        Or(List<Query> parts) {
+            this.parts = parts;
+        }
+        
+        @Override
+        int estimate(SearchIndex index) {
+            long sum = 0;
+            for (Query part : parts) {
+                sum += part.estimate(index);
+            }
+            return (int) Math.min(sum, index.size());
+        }
+        
+        @Override
+        boolean isIndexed() {
+            for (Query part : parts) {
+                if (!part.isIndexed()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        boolean canMatch() {
+            for (Query part : parts) {
+                if (!part.canMatch()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        PostingList evaluate(SearchIndex index) {
+            if (!isIndexed() && canMatch()) {
+                // One pass over every photo instead of one per unindexed part
+                return filter(index, index.allIds(), this);
+            }
+            PostingList result = null;
+            for (Query part : parts) {
+                PostingList ids = part.evaluate(index);
+                result = result == null ? ids : PostingList.or(result, ids);
+            }
+            return result;
+        }
+        
+        @Override
+        boolean matches(SearchIndex index, int id) {
+            for (Query part : parts) {
+                if (part.matches(index, id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        @Override
+        public String toString() {
+            return join(parts, " OR ");
+        }
+    }
+    
+    /**
+     * Photos that don't match.
+     */
+    static class Not extends Query {
+        final Query part;
+        
+        Not(Query part) {
+            this.part = part;
+        }
+        
+        @Override
+        int estimate(SearchIndex index) {
+            return Math.max(0, index.size() - part.estimate(index));
+        }
+        
+        @Override
+        boolean isIndexed() {
+            return part.isIndexed();
+        }
+        
+        @Override
+        boolean canMatch() {
+            return part.canMatch();
+        }
+        
+        @Override
+        PostingList evaluate(SearchIndex index) {
+            return PostingList.andNot(index.allIds(), part.evaluate(index));
+        }
+        
+        @Override
+        boolean matches(SearchIndex index, int id) {
+            return !part.matches(index, id);
+        }
+        
+        @Override
+        public String toString() {
+            return "NOT " + group(part);
+        }
+    }
+    
+    /**
+     * Keeps the ids a query matches, checking them one at a time.
+     */
+    static PostingList filter(SearchIndex index, PostingList ids, Query query) {
+        PostingList result = new PostingList();
+        ids.forEach(id -> {
+            SearchIndex.checkCancelled();
+            if (query.matches(index, id)) {
+                result.add(id);
+            }
+        });
+        return result;
+    }
+    
+    private static String join(List<Query> parts, String operator) {
+        List<String> strings = new ArrayList<>();
+        for (Query part : parts) {
+            strings.add(group(part));
+        }
+        return String.join(operator, strings);
+    }
+    
+    private static String group(Query part) {
+        return part instanceof And || part instanceof Or ? "(" + part + ")" : part.toString();
+    }
+    
+    /**
+     * Puts quotes around a value if it wouldn't parse back on its own.
+     */
+    static String quote(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isWhitespace(c) || "()\"=:*".indexOf(c) >= 0) {
+                return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+            }
+        }
+        if (value.isEmpty() || QueryParser.isKeyword(value) || value.startsWith("-")) {
+            return "\"" + value + "\"";
+        }
+        return value;
+    }
+}
+
@@ -0,0 +1,128 @@
+package photos.model;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the results of recent searches so running the same search again
+ * is one lookup. Results are kept by user and the search's normal form,
+ * least recently used first, and thrown out when there are too many of them.
+ * 
+ * Each result is stored with the user's {@link User#getEpoch() epoch} from
+ * when it was found. Any change to the user's albums, photos or tags moves
+ * the epoch on, so older results just stop matching.
+ * 
+ * @author Photos Team
+ */
+class QueryCache {
+    /** Most searches to remember. */
+    private static final int MAX_ENTRIES = 64;
+    /** Most photos in all remembered results together, to bound memory. */
+    private static final int MAX_PHOTOS = 500_000;
+    
+    private static final QueryCache SHARED = new QueryCache();
+    
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int photoCount;
+    
+    private static class Key {
+        final User user;
+        final String query;
+        
+        Key(User user, String query) {
+            this.user = user;
+            this.query = query;
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            // Users are compared by identity, so renaming one doesn't mix up results
+            return other instanceof Key key && key.user == user && key.query.equals(query);
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(user) * 31 + query.hashCode();
+        }
+    }
+    
+    private static class Entry {
+        final long epoch;
+        final List<Photo> photos;
+        
+        Entry(long epoch, List<Photo> photos) {
+            this.epoch = epoch;
+            this.photos = photos;
+        }
+    }
+    
+    /**
+     * Returns the cache all search indexes share.
+     */
+    static QueryCache shared() {
+        return SHARED;
+    }
+    
+    /**
+     * Returns a remembered result, or null if there isn't one from this epoch.
+     * 
+     * @param user the user who searched
+     * @param query the search's normal form
+     * @param epoch the user's epoch now
+     */
+    synchronized List<Photo> get(User user, String query, long epoch) {
+        Key key = new Key(user, query);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.epoch != epoch) {
+            entries.remove(key);
+            photoCount -= entry.photos.size();
+            return null;
+        }
+        return entry.photos;
+    }
+    
+    /**
+     * Remembers a result. It must not be changed afterwards.
+     * 
+     * @param user the user who searched
+     * @param query the search's normal form
+     * @param epoch the user's epoch when the result was found
+     * @param photos the result
+     */
+    synchronized void put(User user, String query, long epoch, List<Photo> photos) {
+        if (photos.size() > MAX_PHOTOS / 4) {
+            // One huge result would push out everything else
+            return;
+        }
+        Entry old = entries.put(new Key(user, query), new Entry(epoch, photos));
+        if (old != null) {
+            photoCount -= old.photos.size();
+        }
+        photoCount += photos.size();
+        Iterator<Map.Entry<Key, Entry>> oldest = entries.entrySet().iterator();
+        while (entries.size() > MAX_ENTRIES || photoCount > MAX_PHOTOS) {
+            photoCount -= oldest.next().getValue().photos.size();
+            oldest.remove();
+        }
+    }
+    
+    /**
+     * Forgets every result for a user.
+     */
+    synchronized void clear(User user) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> entry = it.next();
+            if (entry.getKey().user == user) {
+                photoCount -= entry.getValue().photos.size();
+                it.remove();
+            }
+        }
+    }
+}
+
@@ -0,0 +1,323 @@
+package photos.model;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Turns query text into a {@link Query}. The syntax:
+ * 
+ * <pre>
+ * person=alice                  photos tagged person=alice
+ * date:2024-03                  taken in March 2024 (also 2024 or 2024-03-05)
+ * date:2024-01-01..2024-06-30   taken in a range; leave out either end for open
+ * caption:beach                caption contains "beach", ignoring case
+ * name:img_004                  file name contains "img_004"
+ * beach                         caption or file name contains "beach"
+ * sun*                          a word in the caption or file name starts with "sun"
+ * album:Vacation                in the album named Vacation
+ * a AND b, a b                  both
+ * a OR b                        either
+ * NOT a, -a                     not a
+ * ( ... )                       grouping
+ * </pre>
+ * 
+ * AND binds tighter than OR. Keywords can be any case. Put quotes around
+ * values with spaces or symbols in them: <code>location="New York"</code>.
+ * 
+ * @author Photos Team
+ */
+class QueryParser {
+    private final String text;
+    private final List<Token> tokens = new ArrayList<>();
+    private int next;
+    
+    /**
+     * A word, parenthesis or minus sign from the query.
+     */
+    private static class Token {
+        final String text;
+        /** Where the token starts, from 1, for error messages. */
+        final int position;
+        /** True for ( ) and a leading -. */
+        final boolean symbol;
+        /** True if any of the token was in quotes, so it can't be a keyword. */
+        final boolean quoted;
+        /** Index of the first = or : that wasn't in quotes, or -1. */
+        final int separator;
+        /** True if the token ended in a * that wasn't in quotes. The * isn't in the text. */
+        final boolean prefix;
+        
+        Token(String text, int position, boolean symbol, boolean quoted, int separator, boolean prefix) {
+            this.text = text;
+            this.position = position;
+            this.symbol = symbol;
+            this.quoted = quoted;
+            this.separator = separator;
+            this.prefix = prefix;
+        }
+        
+        boolean is(String symbolText) {
+            return symbol && text.equals(symbolText);
+        }
+        
+        boolean isKeyword(String keyword) {
+            return !symbol && !quoted && text.equalsIgnoreCase(keyword);
+        }
+    }
+    
+    QueryParser(String text) {
+        this.text = text;
+    }
+    
+    /**
+     * Returns true if a word would be read as AND, OR or NOT.
+     */
+    static boolean isKeyword(String word) {
+        return word.equalsIgnoreCase("AND") || word.equalsIgnoreCase("OR") || word.equalsIgnoreCase("NOT");
+    }
+    
+    /**
+     * Parses the whole text.
+     * 
+     * @throws IllegalArgumentException if the text isn't a valid query
+     */
+    Query parse() {
+        tokenize();
+        if (tokens.isEmpty()) {
+            throw new IllegalArgumentException("The query is empty.");
+        }
+        Query query = parseOr();
+        if (next < tokens.size()) {
+            throw error("Unexpected '" + tokens.get(next).text + "'", tokens.get(next));
+        }
+        return query;
+    }
+    
+    private Query parseOr() {
+        List<Query> parts = new ArrayList<>();
+        parts.add(parseAnd());
+        while (peek() != null && peek().isKeyword("OR")) {
+            next++;
+            parts.add(parseAnd());
+        }
+        return combine(parts, false);
+    }
+    
+    private Query parseAnd() {
+        List<Query> parts = new ArrayList<>();
+        parts.add(parseUnary());
+        while (peek() != null && !peek().isKeyword("OR") && !peek().is(")")) {
+            if (peek().isKeyword("AND")) {
+                next++;
+            }
+            parts.add(parseUnary());
+        }
+        return combine(parts, true);
+    }
+    
+    private Query parseUnary() {
+        Token token = peek();
+        if (token == null) {
+            throw new IllegalArgumentException("The query ends too early.");
+        }
+        next++;
+        if (token.isKeyword("NOT") || token.is("-")) {
+            return new Query.Not(parseUnary());
+        }
+        if (token.is("(")) {
+            Query inner = parseOr();
+            if (peek() == null || !peek().is(")")) {
+                throw new IllegalArgumentException("Missing ')' for the '(' at position " + token.position + ".");
+            }
+            next++;
+            return inner;
+        }
+        if (token.symbol || token.isKeyword("AND") || token.isKeyword("OR")) {
+            throw error("Unexpected '" + token.text + "'", token);
+        }
+        return parseTerm(token);
+    }
+    
+    private Query parseTerm(Token token) {
+        if (token.separator < 0) {
+            return text(null, token.text, token);
+        }
+        String key = token.text.substring(0, token.separator);
+        String value = token.text.substring(token.separator + 1);
+        String field = key.toLowerCase(Locale.ROOT);
+        if (field.equals("caption") || field.equals("name")) {
+            return text(field, value, token);
+        }
+        if (token.prefix) {
+            throw error("* only works on text", token);
+        }
+        if (token.text.charAt(token.separator) == '=') {
+            if (key.isEmpty() || value.isEmpty()) {
+                throw error("A tag needs a name and a value, like person=alice", token);
+            }
+            return new Query.HasTag(new Tag(key, value));
+        }
+        switch (field) {
+            case "date":
+                return parseDateRange(value, token);
+            case "album":
+                if (value.isEmpty()) {
+                    throw error("album: needs an album name", token);
+                }
+                return new Query.InAlbum(value);
+            default:
+                throw error("Unknown field '" + key + "'", token);
+        }
+    }
+    
+    private Query text(String field, String value, Token token) {
+        if (TrigramIndex.normalize(value).isEmpty()) {
+            throw error("Search text needs a letter or digit", token);
+        }
+        return new Query.TextMatch(field, value, token.prefix);
+    }
+    
+    /**
+     * Parses "from..to", either end optional, or a single date meaning the
+     * whole year, month or day it names.
+     */
+    private Query parseDateRange(String value, Token token) {
+        int dots = value.indexOf("..");
+        if (dots < 0) {
+            return new Query.DateRange(parseDate(value, true, token), parseDate(value, false, token));
+        }
+        String from = value.substring(0, dots);
+        String to = value.substring(dots + 2);
+        if (from.isEmpty() && to.isEmpty()) {
+            throw error("A date range needs at least one end", token);
+        }
+        return new Query.DateRange(
+            from.isEmpty() ? null : parseDate(from, true, token),
+            to.isEmpty() ? null : parseDate(to, false, token));
+    }
+    
+    /**
+     * Parses a year, year-month, date or date-time, giving its first moment if
+     * start is true and its last moment otherwise.
+     */
+    private LocalDateTime parseDate(String value, boolean start, Token token) {
+        try {
+            if (value.contains("T")) {
+                return LocalDateTime.parse(value);
+            }
+            LocalDate first;
+            LocalDate after;
+            if (value.matches("\\d{4}")) {
+                first = LocalDate.of(Integer.parseInt(value), 1, 1);
+                after = first.plusYears(1);
+            } else if (value.matches("\\d{4}-\\d{1,2}")) {
+                YearMonth month = YearMonth.parse(value.length() == 7 ? value : value.replace("-", "-0"));
+                first = month.atDay(1);
+                after = first.plusMonths(1);
+            } else {
+                first = LocalDate.parse(value);
+                after = first.plusDays(1);
+            }
+            return start ? first.atStartOfDay() : after.atStartOfDay().minusNanos(1);
+        } catch (DateTimeParseException e) {
+            throw error("'" + value + "' isn't a date; use 2024, 2024-03 or 2024-03-05", token);
+        }
+    }
+    
+    private static Query combine(List<Query> parts, boolean and) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        // Flatten a AND (b AND c) into one AND
+        List<Query> flat = new ArrayList<>();
+        for (Query part : parts) {
+            if (and && part instanceof Query.And inner) {
+                flat.addAll(inner.parts);
+            } else if (!and && part instanceof Query.Or inner) {
+                flat.addAll(inner.parts);
+            } else {
+                flat.add(part);
+            }
+        }
+        return and ? new Query.And(flat) : new Query.Or(flat);
+    }
+    
+    private Token peek() {
+        return next < tokens.size() ? tokens.get(next) : null;
+    }
+    
+    private IllegalArgumentException error(String message, Token token) {
+        return new IllegalArgumentException(message + " (position " + token.position + ")");
+    }
+    
+    private void tokenize() {
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(new Token(String.valueOf(c), i + 1, true, false, -1, false));
+                i++;
+            } else if (c == '-' && i + 1 < text.length() && !Character.isWhitespace(text.charAt(i + 1))) {
+                tokens.add(new Token("-", i + 1, true, false, -1, false));
+                i++;
+            } else {
+                i = readWord(i);
+            }
+        }
+    }
+    
+    /**
+     * Reads a word, which runs up to whitespace or a parenthesis outside of
+     * quotes. Returns where it ends.
+     */
+    private int readWord(int start) {
+        StringBuilder word = new StringBuilder();
+        boolean quoted = false;
+        int separator = -1;
+        int star = -1;
+        int i = start;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c) || c == '(' || c == ')') {
+                break;
+            }
+            if (c == '"') {
+                quoted = true;
+                i++;
+                while (i < text.length() && text.charAt(i) != '"') {
+                    if (text.charAt(i) == '\\' && i + 1 < text.length()) {
+                        i++;
+                    }
+                    word.append(text.charAt(i));
+                    i++;
+                }
+                if (i == text.length()) {
+                    throw new IllegalArgumentException("Missing closing quote for the one at position " + (start + 1) + ".");
+                }
+                i++;
+                continue;
+            }
+            if (separator < 0 && (c == '=' || c == ':')) {
+                separator = word.length();
+            } else if (c == '*') {
+                star = word.length();
+            }
+            word.append(c);
+            i++;
+        }
+        boolean prefix = star >= 0 && star == word.length() - 1;
+        if (prefix) {
+            word.setLength(star);
+        }
+        tokens.add(new Token(word.toString(), start + 1, false, quoted, separator, prefix));
+        return i;
+    }
+}
+
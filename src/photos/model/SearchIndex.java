@@ -0,0 +1,710 @@
+package photos.model;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+/**
+ * Indexes one user's photos so searches don't have to look at every photo in
+ * every album. Each photo gets a small int id, and each tag keeps a
+ * {@link PostingList} of the ids of the photos that have it, so a tag search
+ * is a lookup and AND/OR are intersections and unions of those lists. A
+ * {@link DateIndex} keeps the ids sorted by date taken for date ranges, and
+ * two {@link TrigramIndex}es find text in captions and file names.
+ * 
+ * The index is built once from the user's albums and then kept up to date
+ * from the user's change events. A photo in several albums is indexed once
+ * and only dropped when it's in none of them. Get it with
+ * {@link User#getSearchIndex()}.
+ * 
+ * Searches can run on a background thread while the model changes on the FX
+ * thread: both go through this object's lock, and searches only read what 
+ * the index keeps itself, never a photo's tags or an album's list. The 
+ * slower steps don't hold the lock the whole time, so edits aren't stuck 
+ * behind them: tag searches copy their lists and combine them outside it, 
+ * and facets are counted one tag name at a time. Either starts over if the 
+ * index changed in between. A search on a thread that gets interrupted 
+ * stops with a {@link java.util.concurrent.CancellationException}.
+ * 
+ * Search results are remembered in a {@link QueryCache} until the user 
+ * changes something, so asking again costs one lookup. The lists returned 
+ * are shared that way and can't be changed.
+ * 
+ * @author Photos Team
+ */
+public class SearchIndex implements ModelListener {
+    private final User user;
+    /** Id of every indexed photo. Photos are kept by identity since the user only has one per file. */
+    private final Map<Photo, Integer> ids = new IdentityHashMap<>();
+    /** Photo for each id, null for ids that are free. */
+    private Photo[] photos = new Photo[64];
+    /** How many of the user's albums each id is in. */
+    private int[] albumCounts = new int[64];
+    /** Date taken of each id in epoch millis, as it's stored in the date index. */
+    private long[] dateMillis = new long[64];
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+    private final Map<Tag, PostingList> tagPostings = new HashMap<>();
+    /** The same lists by tag name and then value, for counting facets. */
+    private final Map<String, Map<String, PostingList>> tagsByName = new HashMap<>();
+    /** Ids in each of the user's albums. Albums are kept by identity, so a removed album's events are ignored. */
+    private final Map<Album, PostingList> albumPostings = new IdentityHashMap<>();
+    private final Map<String, Album> albumsByName = new HashMap<>();
+    /** Tag names and values by how many photos use them. Null until a completion is asked for. */
+    private CompletionTrie nameCompletions;
+    private final Map<String, CompletionTrie> valueCompletions = new HashMap<>();
+    private final DateIndex dateIndex = new DateIndex();
+    private final PostingList allIds = new PostingList();
+    private final TrigramIndex captionText = new TrigramIndex();
+    private final TrigramIndex nameText = new TrigramIndex();
+    /** Goes up whenever an id or a tag list changes, so work done outside the lock can tell it's stale. */
+    private long changes;
+    
+    private SearchIndex(User user) {
+        this.user = user;
+    }
+    
+    /**
+     * Indexes all of a user's photos and starts listening for changes.
+     */
+    static SearchIndex build(User user) {
+        SearchIndex index = new SearchIndex(user);
+        for (Album album : user.getAlbums()) {
+            index.addAlbum(album);
+        }
+        user.addListener(index);
+        return index;
+    }
+    
+    /**
+     * Returns the user this index is for.
+     * 
+     * @return the user
+     */
+    public User getUser() {
+        return user;
+    }
+    
+    /**
+     * Returns how many different photos the user has across all albums.
+     * 
+     * @return the number of indexed photos
+     */
+    public synchronized int size() {
+        return ids.size();
+    }
+    
+    /**
+     * Finds the photos that have a tag.
+     * 
+     * @param tag the tag to look for
+     * @return the matching photos, each once
+     */
+    public synchronized List<Photo> findByTag(Tag tag) {
+        return cached(new Query.HasTag(tag).toString(), () -> toPhotos(postings(tag)));
+    }
+    
+    /**
+     * Finds the photos that have both tags (AND) or either of them (OR).
+     * 
+     * @param tag1 the first tag
+     * @param tag2 the second tag
+     * @param matchAll true for AND, false for OR
+     * @return the matching photos, each once
+     */
+    public List<Photo> findByTags(Tag tag1, Tag tag2, boolean matchAll) {
+        List<Query> tags = List.of(new Query.HasTag(tag1), new Query.HasTag(tag2));
+        String key = (matchAll ? new Query.And(tags) : new Query.Or(tags)).toString();
+        PostingList first;
+        PostingList second;
+        long epoch;
+        long seen;
+        synchronized (this) {
+            epoch = user.getEpoch();
+            List<Photo> result = QueryCache.shared().get(user, key, epoch);
+            if (result != null) {
+                return result;
+            }
+            first = postings(tag1).copy();
+            second = postings(tag2).copy();
+            seen = changes;
+        }
+        PostingList found = matchAll ? PostingList.and(first, second) : PostingList.or(first, second);
+        synchronized (this) {
+            if (seen == changes) {
+                List<Photo> result = Collections.unmodifiableList(toPhotos(found));
+                QueryCache.shared().put(user, key, epoch, result);
+                return result;
+            }
+            // Ids may have been reused meanwhile, so do it again under the lock
+            return cached(key, () -> toPhotos(matchAll
+                ? PostingList.and(postings(tag1), postings(tag2))
+                : PostingList.or(postings(tag1), postings(tag2))));
+        }
+    }
+    
+    /**
+     * Finds the photos taken from start to end, both included.
+     * 
+     * @param start the earliest date taken
+     * @param end the latest date taken
+     * @return the matching photos, oldest first
+     */
+    public synchronized List<Photo> findByDate(LocalDateTime start, LocalDateTime end) {
+        return cached(new Query.DateRange(start, end).toString(), () -> {
+            List<Photo> result = new ArrayList<>();
+            dateIndex.forRange(toMillis(start), toMillis(end), id -> result.add(photos[id]));
+            return result;
+        });
+    }
+    
+    /**
+     * Returns the most recently taken photos.
+     * 
+     * @param count how many photos to return at most
+     * @return the newest photos, newest first
+     */
+    public synchronized List<Photo> findNewest(int count) {
+        List<Photo> result = new ArrayList<>(Math.min(count, ids.size()));
+        dateIndex.forNewest(count, id -> result.add(photos[id]));
+        return result;
+    }
+    
+    /**
+     * Finds the photos whose caption or file name contains some text, 
+     * ignoring case and punctuation, best matches first. Caption matches 
+     * come before file name matches; within those a whole match beats one 
+     * at the start, which beats one at the start of a word, which beats one 
+     * inside a word.
+     * 
+     * @param text the text to look for
+     * @param limit the most photos to return
+     * @return the matching photos, best first
+     */
+    public synchronized List<Photo> findText(String text, int limit) {
+        String term = TrigramIndex.term(text, false);
+        return cached("text:" + limit + ":" + Query.quote(term), () -> rankText(term, limit));
+    }
+    
+    private List<Photo> rankText(String term, int limit) {
+        PostingList found = textIds(null, term);
+        // Keep the best few in a heap, worst on top, instead of sorting everything
+        PriorityQueue<long[]> best = new PriorityQueue<>(
+            (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(b[1], a[1]));
+        found.forEach(id -> {
+            int captionRank = captionText.rank(id, term);
+            long score = captionRank >= 0 ? 4 + captionRank : nameText.rank(id, term);
+            if (best.size() < limit) {
+                best.add(new long[] {score, id});
+            } else if (limit > 0 && score > best.peek()[0]) {
+                best.poll();
+                best.add(new long[] {score, id});
+            }
+        });
+        List<Photo> result = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            result.add(photos[(int) best.poll()[1]]);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+    
+    /**
+     * Suggests tag names that start with what's been typed, ignoring case. 
+     * The names used on the most photos come first.
+     * 
+     * @param prefix the text typed so far
+     * @param limit the most names to return
+     * @return the tag names, most used first
+     */
+    public synchronized List<String> completeTagNames(String prefix, int limit) {
+        buildCompletions();
+        return nameCompletions.top(prefix, limit);
+    }
+    
+    /**
+     * Suggests values for a tag name that start with what's been typed, 
+     * ignoring case. The values on the most photos come first.
+     * 
+     * @param name the tag name, like "person"
+     * @param prefix the text typed so far
+     * @param limit the most values to return
+     * @return the tag values, most used first
+     */
+    public synchronized List<String> completeTagValues(String name, String prefix, int limit) {
+        buildCompletions();
+        CompletionTrie values = valueCompletions.get(name);
+        return values == null ? new ArrayList<>() : values.top(prefix, limit);
+    }
+    
+    /**
+     * Finds the photos that match a query.
+     * 
+     * @param query the query, from {@link Query#parse(String)}
+     * @return the matching photos, each once
+     */
+    public synchronized List<Photo> find(Query query) {
+        return cached(query.toString(), () -> toPhotos(query.evaluate(this)));
+    }
+    
+    /**
+     * Returns the result remembered for a search if nothing has changed 
+     * since, or runs it and remembers it. Called with the lock held, so the 
+     * epoch read here matches the index the search runs on.
+     * 
+     * @param key the search's normal form
+     * @param search runs the search
+     */
+    private List<Photo> cached(String key, Supplier<List<Photo>> search) {
+        long epoch = user.getEpoch();
+        List<Photo> result = QueryCache.shared().get(user, key, epoch);
+        if (result == null) {
+            result = Collections.unmodifiableList(search.get());
+            QueryCache.shared().put(user, key, epoch, result);
+        }
+        return result;
+    }
+    
+    /**
+     * Counts how many of some photos have each tag value, like 
+     * "person=Alice (312)". Each tag's list is intersected with the photos, 
+     * so the photos' own tags are never looked at. The lock is let go 
+     * between tag names, and the count starts over if the index changed.
+     * 
+     * @param photos the photos to count, like a search's results
+     * @param limit the most values to return for each tag name
+     * @return the values for each tag name, most used first, by name
+     */
+    public Map<String, List<Facet>> facets(Collection<Photo> photos, int limit) {
+        while (true) {
+            PostingList set;
+            List<String> names;
+            long seen;
+            synchronized (this) {
+                int[] found = new int[photos.size()];
+                int n = 0;
+                for (Photo photo : photos) {
+                    Integer id = ids.get(photo);
+                    if (id != null) {
+                        found[n++] = id;
+                    }
+                }
+                set = PostingList.of(Arrays.copyOf(found, n));
+                if (set.size() == allIds.size()) {
+                    return countFacets(null, limit);
+                }
+                names = new ArrayList<>(tagsByName.keySet());
+                seen = changes;
+            }
+            Map<String, List<Facet>> result = new TreeMap<>();
+            for (String name : names) {
+                synchronized (this) {
+                    if (seen != changes) {
+                        break;
+                    }
+                    countFacets(name, set, limit, result);
+                }
+            }
+            synchronized (this) {
+                if (seen == changes) {
+                    return result;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Counts how many of all the user's photos have each tag value. These 
+     * counts are just the sizes of the tag lists, which are kept up to date 
+     * as tags are added and removed, so nothing has to be counted.
+     * 
+     * @param limit the most values to return for each tag name
+     * @return the values for each tag name, most used first, by name
+     */
+    public synchronized Map<String, List<Facet>> libraryFacets(int limit) {
+        return countFacets(null, limit);
+    }
+    
+    /**
+     * Counts facets for a set of ids, or for every photo if it's null.
+     */
+    private Map<String, List<Facet>> countFacets(PostingList set, int limit) {
+        Map<String, List<Facet>> result = new TreeMap<>();
+        for (String name : tagsByName.keySet()) {
+            countFacets(name, set, limit, result);
+        }
+        return result;
+    }
+    
+    /**
+     * Counts the facets for one tag name and adds them to result, if any of
+     * the photos have it.
+     */
+    private void countFacets(String name, PostingList set, int limit, Map<String, List<Facet>> result) {
+        Map<String, PostingList> byValue = tagsByName.get(name);
+        if (byValue == null) {
+            return;
+        }
+        List<Facet> values = new ArrayList<>();
+        for (Map.Entry<String, PostingList> value : byValue.entrySet()) {
+            checkCancelled();
+            int count = set == null ? value.getValue().size() : PostingList.andCount(set, value.getValue());
+            if (count > 0) {
+                values.add(new Facet(new Tag(name, value.getKey()), count));
+            }
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+        values.sort((a, b) -> a.getCount() != b.getCount()
+            ? Integer.compare(b.getCount(), a.getCount())
+            : a.getTag().getValue().compareToIgnoreCase(b.getTag().getValue()));
+        result.put(name, values.size() > limit ? new ArrayList<>(values.subList(0, limit)) : values);
+    }
+    
+    /**
+     * Returns the ids of the photos with a tag. The list belongs to the index,
+     * so it must not be changed.
+     */
+    PostingList postings(Tag tag) {
+        PostingList list = tagPostings.get(tag);
+        return list == null ? new PostingList() : list;
+    }
+    
+    /**
+     * Returns the ids of every indexed photo. Belongs to the index.
+     */
+    PostingList allIds() {
+        return allIds;
+    }
+    
+    /**
+     * Returns how many photos were taken from start to end, in epoch millis.
+     */
+    int countDates(long start, long end) {
+        return dateIndex.count(start, end);
+    }
+    
+    /**
+     * Returns the ids of the photos taken from start to end, in epoch millis.
+     */
+    PostingList dateIds(long start, long end) {
+        int[] found = new int[dateIndex.count(start, end)];
+        int[] n = {0};
+        dateIndex.forRange(start, end, id -> found[n[0]++] = id);
+        return PostingList.of(found);
+    }
+    
+    /**
+     * Returns the ids of the photos in the album with a name. The list 
+     * belongs to the index.
+     */
+    PostingList albumIds(String name) {
+        Album album = albumsByName.get(name);
+        return album == null ? new PostingList() : albumPostings.get(album);
+    }
+    
+    /**
+     * Returns the ids whose caption ("caption"), file name ("name") or either 
+     * (null) contains a search string from {@link TrigramIndex#term}.
+     */
+    PostingList textIds(String field, String term) {
+        if (field == null) {
+            return PostingList.or(captionText.find(term, allIds), nameText.find(term, allIds));
+        }
+        return textIndex(field).find(term, allIds);
+    }
+    
+    /**
+     * Returns at most how many ids {@link #textIds} would find.
+     */
+    int countText(String field, String term) {
+        if (field == null) {
+            return Math.min(size(), captionText.estimate(term, size()) + nameText.estimate(term, size()));
+        }
+        return textIndex(field).estimate(term, size());
+    }
+    
+    /**
+     * Checks one id for a search string, like {@link #textIds}.
+     */
+    boolean textMatches(String field, int id, String term) {
+        if (field == null) {
+            return captionText.matches(id, term) || nameText.matches(id, term);
+        }
+        return textIndex(field).matches(id, term);
+    }
+    
+    private TrigramIndex textIndex(String field) {
+        return field.equals("name") ? nameText : captionText;
+    }
+    
+    /**
+     * Returns the date taken of the photo with an id, in epoch millis.
+     */
+    long dateAt(int id) {
+        return dateMillis[id];
+    }
+    
+    /**
+     * Looks up the photos for a list of ids, in id order.
+     */
+    List<Photo> toPhotos(PostingList list) {
+        List<Photo> result = new ArrayList<>(list.size());
+        list.forEach(id -> result.add(photos[id]));
+        return result;
+    }
+    
+    @Override
+    public synchronized void albumAdded(User user, Album album) {
+        addAlbum(album);
+    }
+    
+    @Override
+    public synchronized void albumRemoved(User user, Album album) {
+        if (albumPostings.remove(album) == null) {
+            return;
+        }
+        albumsByName.remove(album.getName(), album);
+        for (Photo photo : album.getPhotos()) {
+            release(photo);
+        }
+    }
+    
+    @Override
+    public synchronized void albumRenamed(User user, Album album, String oldName) {
+        if (albumsByName.remove(oldName, album)) {
+            albumsByName.put(album.getName(), album);
+        }
+    }
+    
+    @Override
+    public synchronized void photoAdded(User user, Album album, Photo photo) {
+        PostingList list = albumPostings.get(album);
+        if (list != null) {
+            list.add(addRef(photo));
+        }
+    }
+    
+    @Override
+    public synchronized void photoRemoved(User user, Album album, Photo photo) {
+        PostingList list = albumPostings.get(album);
+        Integer id = ids.get(photo);
+        if (list != null && id != null && list.remove(id)) {
+            release(photo);
+        }
+    }
+    
+    @Override
+    public synchronized void tagAdded(User user, Photo photo, Tag tag) {
+        Integer id = ids.get(photo);
+        if (id != null) {
+            addPosting(tag, id);
+        }
+    }
+    
+    @Override
+    public synchronized void tagRemoved(User user, Photo photo, Tag tag) {
+        Integer id = ids.get(photo);
+        if (id != null) {
+            removePosting(tag, id);
+        }
+    }
+    
+    @Override
+    public synchronized void captionChanged(User user, Photo photo) {
+        Integer id = ids.get(photo);
+        if (id != null) {
+            captionText.set(id, photo.getCaption());
+        }
+    }
+    
+    @Override
+    public synchronized void dateChanged(User user, Photo photo) {
+        updateDate(photo);
+    }
+    
+    @Override
+    public synchronized void filePathChanged(User user, Photo photo, String oldPath) {
+        // The date gets read again from the new file
+        updateDate(photo);
+        Integer id = ids.get(photo);
+        if (id != null) {
+            nameText.set(id, baseName(photo.getFilePath()));
+        }
+    }
+    
+    private void updateDate(Photo photo) {
+        Integer id = ids.get(photo);
+        long millis = toMillis(photo.getDateTaken());
+        if (id != null && dateMillis[id] != millis) {
+            dateIndex.remove(dateMillis[id], id);
+            dateMillis[id] = millis;
+            dateIndex.add(millis, id);
+        }
+    }
+    
+    /**
+     * Starts tracking one of the user's albums and indexes its photos.
+     */
+    private void addAlbum(Album album) {
+        PostingList list = new PostingList();
+        for (Photo photo : album.getPhotos()) {
+            list.add(addRef(photo));
+        }
+        albumPostings.put(album, list);
+        albumsByName.put(album.getName(), album);
+    }
+    
+    /**
+     * Counts one more album for a photo, indexing it if it's new. Returns 
+     * its id.
+     */
+    private int addRef(Photo photo) {
+        Integer id = ids.get(photo);
+        if (id != null) {
+            albumCounts[id]++;
+            return id;
+        }
+        int newId = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        if (newId == photos.length) {
+            photos = Arrays.copyOf(photos, newId * 2);
+            albumCounts = Arrays.copyOf(albumCounts, newId * 2);
+            dateMillis = Arrays.copyOf(dateMillis, newId * 2);
+        }
+        changes++;
+        ids.put(photo, newId);
+        photos[newId] = photo;
+        albumCounts[newId] = 1;
+        dateMillis[newId] = toMillis(photo.getDateTaken());
+        dateIndex.add(dateMillis[newId], newId);
+        allIds.add(newId);
+        captionText.set(newId, photo.getCaption());
+        nameText.set(newId, baseName(photo.getFilePath()));
+        for (Tag tag : photo.getTags()) {
+            addPosting(tag, newId);
+        }
+        return newId;
+    }
+    
+    /**
+     * Counts one less album for a photo, dropping it from the index once it's
+     * in none.
+     */
+    private void release(Photo photo) {
+        Integer id = ids.get(photo);
+        if (id == null || --albumCounts[id] > 0) {
+            return;
+        }
+        changes++;
+        for (Tag tag : photo.getTags()) {
+            removePosting(tag, id);
+        }
+        dateIndex.remove(dateMillis[id], id);
+        allIds.remove(id);
+        captionText.remove(id);
+        nameText.remove(id);
+        ids.remove(photo);
+        photos[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+    
+    /**
+     * Stops a search whose thread was interrupted, because a newer search
+     * replaced it. Long loops call this as they go.
+     */
+    static void checkCancelled() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException();
+        }
+    }
+    
+    /**
+     * Turns a date into epoch millis in the system time zone, the same way the
+     * change journal saves it. Photos without a date sort first.
+     */
+    static long toMillis(LocalDateTime date) {
+        return date == null ? Long.MIN_VALUE : date.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+    
+    /**
+     * Returns a file's name without its folder or extension.
+     */
+    private static String baseName(String filePath) {
+        String name = new File(filePath).getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+    
+    private void addPosting(Tag tag, int id) {
+        PostingList list = tagPostings.get(tag);
+        if (list == null) {
+            list = new PostingList();
+            tagPostings.put(tag, list);
+            tagsByName.computeIfAbsent(tag.getName(), n -> new HashMap<>()).put(tag.getValue(), list);
+        }
+        changes++;
+        if (list.add(id) && nameCompletions != null) {
+            nameCompletions.add(tag.getName(), 1);
+            valueCompletions.computeIfAbsent(tag.getName(), n -> new CompletionTrie()).add(tag.getValue(), 1);
+        }
+    }
+    
+    private void removePosting(Tag tag, int id) {
+        PostingList list = tagPostings.get(tag);
+        if (list == null || !list.remove(id)) {
+            return;
+        }
+        changes++;
+        if (list.isEmpty()) {
+            tagPostings.remove(tag);
+            Map<String, PostingList> values = tagsByName.get(tag.getName());
+            values.remove(tag.getValue());
+            if (values.isEmpty()) {
+                tagsByName.remove(tag.getName());
+            }
+        }
+        if (nameCompletions != null) {
+            nameCompletions.add(tag.getName(), -1);
+            CompletionTrie values = valueCompletions.get(tag.getName());
+            values.add(tag.getValue(), -1);
+            if (values.size() == 0) {
+                valueCompletions.remove(tag.getName());
+            }
+        }
+    }
+    
+    /**
+     * Builds the completion tries from the tag lists the first time they're 
+     * needed. After that they're kept up to date with the lists.
+     */
+    private void buildCompletions() {
+        if (nameCompletions != null) {
+            return;
+        }
+        nameCompletions = new CompletionTrie();
+        for (Map.Entry<Tag, PostingList> entry : tagPostings.entrySet()) {
+            Tag tag = entry.getKey();
+            int count = entry.getValue().size();
+            nameCompletions.add(tag.getName(), count);
+            valueCompletions.computeIfAbsent(tag.getName(), n -> new CompletionTrie()).add(tag.getValue(), count);
+        }
+    }
+}
+
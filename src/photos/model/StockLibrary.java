@@ -0,0 +1,271 @@
+package photos.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps the stock user's "stock" album in sync with the image files in
+ * data/stock and its subfolders (or data/ if that has none). Listing folders
+ * is cheap, but building a Photo for every file means reading every file, so
+ * the last scan is remembered as a fingerprint (folder, modified time, file count and a hash
+ * of the names). If the fingerprint hasn't changed, nothing else happens.
+ * Otherwise only new and deleted files are dealt with, and photos that are
+ * still there keep their captions and tags.
+ * 
+ * @author Photos Team
+ */
+class StockLibrary {
+    static final String ALBUM_NAME = "stock";
+    
+    private final File dataDir;
+    private final File fingerprintFile;
+    /** The folder the last scan found photos in, or data/stock if it found none. */
+    private File folder;
+    /** Every folder the last scan looked in. */
+    private final Queue<Path> folders = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The image files found in the stock folder.
+     */
+    class Scan {
+        final File dir;
+        final List<Path> files;
+        final String fingerprint;
+        /** How the new files were read by {@link #reconcile}, or null if there were none. */
+        PhotoIngest.Result imported;
+        
+        Scan(File dir, List<Path> files) {
+            this.dir = dir;
+            this.files = files;
+            long hash = 0;
+            for (Path file : files) {
+                // Adding up mixed hashes doesn't depend on listing order
+                String name = dir.toPath().relativize(file).toString();
+                hash += name.hashCode() * 0x9E3779B97F4A7C15L;
+            }
+            // The data directory itself also gets our own save files written
+            // to it, so its modified time changes all the time and can't be used
+            long modified = dir == null || dir.equals(dataDir) ? 0 : dir.lastModified();
+            this.fingerprint = (dir == null ? "" : dir.getAbsolutePath()) + "|" + modified
+                + "|" + files.size() + "|" + Long.toHexString(hash);
+        }
+    }
+    
+    /**
+     * Creates a stock library for the given data directory.
+     * 
+     * @param dataDir the data directory
+     * @param fingerprintFile where the fingerprint of the last scan is kept
+     */
+    StockLibrary(File dataDir, File fingerprintFile) {
+        this.dataDir = dataDir;
+        this.fingerprintFile = fingerprintFile;
+    }
+    
+    /**
+     * Returns true if a file name has one of the image extensions we support.
+     */
+    static boolean isImage(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".jpg") || lower.endsWith(".jpeg") ||
+               lower.endsWith(".png") || lower.endsWith(".gif") ||
+               lower.endsWith(".bmp");
+    }
+    
+    /**
+     * Lists the image files in the stock folder and its subfolders. Only reads 
+     * the folders, not the files, so it's quick even for big folders.
+     */
+    Scan scan() {
+        // First try data/stock/ subdirectory, then fall back to data/ directory
+        File stockDir = new File(dataDir, "stock");
+        folder = stockDir;
+        folders.clear();
+        List<Path> files = PhotoIngest.discover(stockDir.toPath(), true, folders);
+        if (!files.isEmpty()) {
+            return new Scan(stockDir, files);
+        }
+        // Not recursive here - data/ also holds the app's own folders
+        Queue<Path> dataFolders = new ConcurrentLinkedQueue<>();
+        files = PhotoIngest.discover(dataDir.toPath(), false, dataFolders);
+        if (!files.isEmpty()) {
+            folder = dataDir;
+            folders.clear();
+            folders.addAll(dataFolders);
+            return new Scan(dataDir, files);
+        }
+        return new Scan(null, List.of());
+    }
+    
+    /**
+     * Returns the folder stock photos come from, as decided by the last 
+     * {@link #scan()}.
+     */
+    Path getFolder() {
+        return folder == null ? null : folder.toPath().toAbsolutePath();
+    }
+    
+    /**
+     * Returns every folder the last {@link #scan()} looked in, so they can be 
+     * watched for new files.
+     */
+    List<Path> getFolders() {
+        List<Path> result = new ArrayList<>();
+        for (Path path : folders) {
+            result.add(path.toAbsolutePath());
+        }
+        return result;
+    }
+    
+    /**
+     * Checks whether a file or folder belongs in the stock library: it has to 
+     * be in the stock folder, or in one of its subfolders unless the stock 
+     * folder is data/ itself.
+     */
+    boolean contains(Path path) {
+        Path root = getFolder();
+        if (root == null || path.equals(root) || !path.startsWith(root)) {
+            return false;
+        }
+        return !folder.equals(dataDir) || root.equals(path.getParent());
+    }
+    
+    /**
+     * Picks out the image files that belong in the stock library from files 
+     * and folders that were created or changed after it was scanned. Paths 
+     * outside it are skipped, and a new subfolder gets searched for images. 
+     * Only reads the disk, so it can run on any thread.
+     * 
+     * @param paths files or folders that were created or changed
+     * @return the image files
+     */
+    List<Path> imageFiles(Collection<Path> paths) {
+        List<Path> files = new ArrayList<>();
+        for (Path path : paths) {
+            if (!contains(path)) {
+                continue;
+            }
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (!folder.equals(dataDir)) {
+                    files.addAll(PhotoIngest.discover(path, true));
+                }
+            } else if (isImage(path.getFileName().toString()) && Files.isRegularFile(path)) {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+    
+    /**
+     * Adds photos built from new files to the stock album.
+     * 
+     * @param stockUser the stock user
+     * @param photos the photos, none of them the stock user's already
+     */
+    void addPhotos(User stockUser, List<Photo> photos) {
+        if (photos.isEmpty()) {
+            return;
+        }
+        Album album = stockUser.getAlbumByName(ALBUM_NAME);
+        if (album == null) {
+            album = new Album(ALBUM_NAME);
+            stockUser.addAlbum(album);
+        }
+        album.addPhotos(photos);
+    }
+    
+    /**
+     * Checks whether a scan matches the last one that was synced.
+     */
+    boolean isUnchanged(Scan scan) {
+        try {
+            return fingerprintFile.exists() && new String(
+                Files.readAllBytes(fingerprintFile.toPath()), StandardCharsets.UTF_8).equals(scan.fingerprint);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Remembers a scan's fingerprint. Only call this once the changes from
+     * {@link #reconcile(User, Scan)} have been saved.
+     */
+    void saveFingerprint(Scan scan) throws IOException {
+        Files.write(fingerprintFile.toPath(), scan.fingerprint.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Updates the stock album to match a scan: adds photos for new files and
+     * removes photos whose files are gone. Everything else is left alone.
+     * How quickly the new files were read is left in the scan's
+     * {@code imported}.
+     * 
+     * @param stockUser the stock user
+     * @param scan what's on disk now
+     * @return true if the album changed
+     */
+    boolean reconcile(User stockUser, Scan scan) {
+        Album album = stockUser.getAlbumByName(ALBUM_NAME);
+        if (album == null) {
+            album = new Album(ALBUM_NAME);
+            stockUser.addAlbum(album);
+        }
+        
+        Map<String, Path> onDisk = new HashMap<>();
+        for (Path file : scan.files) {
+            onDisk.put(file.toAbsolutePath().toString(), file);
+        }
+        
+        Set<String> inAlbum = new HashSet<>();
+        List<Photo> gone = new ArrayList<>();
+        for (Photo photo : album.getPhotos()) {
+            inAlbum.add(photo.getFilePath());
+            if (!onDisk.containsKey(photo.getFilePath())) {
+                gone.add(photo);
+            }
+        }
+        
+        // Photos already in another album get reused so they stay the same photo
+        Map<String, Photo> known = new HashMap<>();
+        for (Album other : stockUser.getAlbums()) {
+            for (Photo photo : other.getPhotos()) {
+                known.putIfAbsent(photo.getFilePath(), photo);
+            }
+        }
+        
+        List<Photo> added = new ArrayList<>();
+        List<Path> newFiles = new ArrayList<>();
+        for (Map.Entry<String, Path> entry : onDisk.entrySet()) {
+            if (!inAlbum.contains(entry.getKey())) {
+                Photo photo = known.get(entry.getKey());
+                if (photo != null) {
+                    added.add(photo);
+                } else {
+                    newFiles.add(entry.getValue());
+                }
+            }
+        }
+        if (!newFiles.isEmpty()) {
+            scan.imported = PhotoIngest.build(newFiles);
+            added.addAll(scan.imported.photos);
+        }
+        
+        album.removePhotos(gone);
+        album.addPhotos(added);
+        return !gone.isEmpty() || !added.isEmpty();
+    }
+}
+
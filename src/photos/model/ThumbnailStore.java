@@ -0,0 +1,371 @@
+package photos.model;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps small, already scaled copies of photos on disk, so opening an album
+ * reads a few KB per photo instead of decoding every full size file again.
+ * Thumbnails are JPEGs (PNGs if they have transparency) in a folder under
+ * data/.
+ * 
+ * Each file is named after its source file's path, the thumbnail size, and
+ * the source's modified time and length when it was made. A thumbnail whose
+ * source has changed since no longer matches and gets replaced. The folder
+ * is kept under a byte budget by deleting the least recently used
+ * thumbnails first.
+ * 
+ * Thumbnails are written on a background thread, so saving one never holds
+ * up the screen.
+ * 
+ * @author Photos Team
+ */
+public class ThumbnailStore {
+    private static final float JPEG_QUALITY = 0.85f;
+    
+    private final File dir;
+    private final long maxBytes;
+    /** Thumbnail on disk for each source path and size, least recently used first. Null until the folder is read. */
+    private LinkedHashMap<String, Entry> entries;
+    private long totalBytes;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "photos-thumbnails");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private static class Entry {
+        final String fileName;
+        final long bytes;
+        /** True once the file's time was updated this run, to keep its place next run. */
+        boolean touched;
+        
+        Entry(String fileName, long bytes) {
+            this.fileName = fileName;
+            this.bytes = bytes;
+        }
+    }
+    
+    /**
+     * What a thumbnail is made from: the source file as it is right now, and
+     * the size. Get one before decoding the source, so a thumbnail is never
+     * filed under a newer version of the file than it was made from.
+     */
+    public static final class Key {
+        final String id;
+        final String fileName;
+        /** The source's path hash and version, for making keys for other sizes. Null version if it's missing. */
+        private final String hash;
+        private final String version;
+        
+        private Key(String hash, String variant, String version) {
+            this.id = hash + "-" + variant;
+            this.fileName = id + "-" + (version == null ? "0-0" : version);
+            this.hash = hash;
+            this.version = version;
+        }
+        
+        /**
+         * Returns the key for another size of the same version of the same
+         * file, without looking at the file again.
+         * 
+         * @param size the most pixels wide or high the thumbnail is
+         * @return the key
+         */
+        public Key sized(int size) {
+            return new Key(hash, String.valueOf(size), version);
+        }
+        
+        /**
+         * Returns true if the source file was there when the key was made.
+         * 
+         * @return true if the source exists
+         */
+        public boolean hasSource() {
+            return version != null;
+        }
+        
+        /**
+         * Two keys are equal if they're for the same file, size and version 
+         * of the file, so keys can be used to cache thumbnails in memory too.
+         */
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key key && key.fileName.equals(fileName);
+        }
+        
+        @Override
+        public int hashCode() {
+            return fileName.hashCode();
+        }
+    }
+    
+    /**
+     * Creates a store. The folder is made when the first thumbnail is saved.
+     * 
+     * @param dir the folder to keep thumbnails in
+     * @param maxBytes how many bytes of thumbnails to keep at most
+     */
+    public ThumbnailStore(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * Returns the key for a thumbnail of a file, from the file's current
+     * modified time and length. Keys for its other sizes can be had from
+     * {@link Key#sized} without reading those again.
+     * 
+     * @param source the full size image file
+     * @param size the most pixels wide or high the thumbnail is
+     * @return the key
+     */
+    public Key key(File source, int size) {
+        return key(source, String.valueOf(size));
+    }
+    
+    /**
+     * Returns the key for some other kind of scaled copy of a file, like 
+     * one tile of it.
+     * 
+     * @param source the full size image file
+     * @param variant which copy it is; letters and digits only
+     * @return the key
+     */
+    public Key key(File source, String variant) {
+        String version;
+        try {
+            // One read of the attributes, rather than one for each
+            BasicFileAttributes attributes = Files.readAttributes(source.toPath(), BasicFileAttributes.class);
+            version = Long.toHexString(attributes.lastModifiedTime().toMillis())
+                + "-" + Long.toHexString(attributes.size());
+        } catch (IOException e) {
+            version = null;
+        }
+        return new Key(hash(source.getAbsolutePath()), variant, version);
+    }
+    
+    /**
+     * Returns the saved thumbnail for a key, or null if there isn't one made
+     * from the source file as it is now.
+     * 
+     * @param key the key from {@link #key(File, int)}
+     * @return the thumbnail file, or null
+     */
+    public synchronized File find(Key key) {
+        Entry entry = entries().get(key.id);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.fileName.startsWith(key.fileName + ".")) {
+            // Made from an older version of the file
+            remove(key.id);
+            return null;
+        }
+        File file = new File(dir, entry.fileName);
+        if (!entry.touched) {
+            entry.touched = true;
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return file;
+    }
+    
+    /**
+     * Saves a thumbnail in the background.
+     * 
+     * @param key the key from {@link #key(File, int)}, taken before the
+     *            source was decoded
+     * @param argb the thumbnail's pixels, row by row
+     * @param width the thumbnail's width
+     * @param height the thumbnail's height
+     */
+    public void put(Key key, int[] argb, int width, int height) {
+        writer.execute(() -> {
+            try {
+                save(key, argb, width, height);
+            } catch (IOException e) {
+                System.err.println("Failed to save thumbnail: " + e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Deletes a saved thumbnail, like one that turned out not to load.
+     * 
+     * @param key the key from {@link #key(File, int)}
+     */
+    public synchronized void invalidate(Key key) {
+        remove(key.id);
+    }
+    
+    /**
+     * Returns how many bytes of thumbnails are saved.
+     * 
+     * @return the total size of the saved thumbnails
+     */
+    public synchronized long getTotalBytes() {
+        entries();
+        return totalBytes;
+    }
+    
+    /**
+     * Finishes saving the thumbnails already handed over, waiting a few
+     * seconds at most. Call when the app exits.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Saves a thumbnail right away, on the calling thread. For callers that 
+     * are already in the background and need the file next.
+     * 
+     * @param key the key from {@link #key(File, int)}, taken before the
+     *            source was decoded
+     * @param argb the thumbnail's pixels, row by row
+     * @param width the thumbnail's width
+     * @param height the thumbnail's height
+     * @throws IOException if the file can't be written
+     */
+    public void save(Key key, int[] argb, int width, int height) throws IOException {
+        boolean alpha = false;
+        for (int pixel : argb) {
+            if (pixel >>> 24 != 0xff) {
+                alpha = true;
+                break;
+            }
+        }
+        BufferedImage image = new BufferedImage(width, height,
+            alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, argb, 0, width);
+        
+        String fileName = key.fileName + (alpha ? ".png" : ".jpg");
+        File file = new File(dir, fileName);
+        File temp = new File(dir, fileName + ".tmp");
+        Files.createDirectories(dir.toPath());
+        if (alpha) {
+            ImageIO.write(image, "png", temp);
+        } else {
+            writeJpeg(image, temp);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        synchronized (this) {
+            Entry old = entries().get(key.id);
+            if (old != null && !old.fileName.equals(fileName)) {
+                remove(key.id);
+            } else if (old != null) {
+                totalBytes -= old.bytes;
+            }
+            entries.put(key.id, new Entry(fileName, file.length()));
+            totalBytes += file.length();
+            Iterator<Map.Entry<String, Entry>> oldest = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && oldest.hasNext()) {
+                Entry evicted = oldest.next().getValue();
+                oldest.remove();
+                totalBytes -= evicted.bytes;
+                new File(dir, evicted.fileName).delete();
+            }
+        }
+    }
+    
+    private static void writeJpeg(BufferedImage image, File file) throws IOException {
+        ImageWriter jpeg = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            ImageWriteParam param = jpeg.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            jpeg.setOutput(out);
+            jpeg.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            jpeg.dispose();
+        }
+    }
+    
+    private void remove(String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            totalBytes -= entry.bytes;
+            new File(dir, entry.fileName).delete();
+        }
+    }
+    
+    /**
+     * Reads what's in the folder the first time it's needed. Files that were
+     * used least recently in earlier runs come first, going by when they
+     * were last written or used.
+     */
+    private LinkedHashMap<String, Entry> entries() {
+        if (entries != null) {
+            return entries;
+        }
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return entries;
+        }
+        long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+        for (int i : order) {
+            String name = files[i].getName();
+            int dash = name.indexOf('-', name.indexOf('-') + 1);
+            if (name.endsWith(".tmp") || dash < 0) {
+                // Left over from a write that didn't finish
+                files[i].delete();
+                continue;
+            }
+            Entry old = entries.put(name.substring(0, dash), new Entry(name, files[i].length()));
+            if (old != null) {
+                // An older version of the same thumbnail
+                totalBytes -= old.bytes;
+                new File(dir, old.fileName).delete();
+            }
+            totalBytes += files[i].length();
+        }
+        return entries;
+    }
+    
+    private static String hash(String path) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(path.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
@@ -0,0 +1,197 @@
+package photos.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds text inside one string per photo id, like captions or file names,
+ * without looking at every string. Each string is normalized (lowercase,
+ * punctuation turned into single spaces, a space in front) and every run of
+ * three characters in it gets a {@link PostingList}. A search intersects the
+ * lists for the search text's own trigrams, smallest first, then checks the
+ * few strings left for the real substring.
+ * 
+ * Because every word has a space in front after normalizing, a word prefix
+ * search for "sun" is just a substring search for " sun".
+ * 
+ * @author Photos Team
+ */
+class TrigramIndex {
+    private final Map<Long, PostingList> postings = new HashMap<>();
+    /** Normalized text for each id, null if there isn't any. */
+    private String[] texts = new String[64];
+    
+    /**
+     * Sets the text for an id, replacing what it had.
+     */
+    void set(int id, String text) {
+        remove(id);
+        String normalized = normalize(text);
+        if (normalized.isEmpty()) {
+            return;
+        }
+        if (id >= texts.length) {
+            texts = Arrays.copyOf(texts, Math.max(id + 1, texts.length * 2));
+        }
+        texts[id] = normalized;
+        for (int i = 0; i + 3 <= normalized.length(); i++) {
+            postings.computeIfAbsent(key(normalized, i), k -> new PostingList()).add(id);
+        }
+    }
+    
+    /**
+     * Drops an id's text.
+     */
+    void remove(int id) {
+        if (id >= texts.length || texts[id] == null) {
+            return;
+        }
+        String normalized = texts[id];
+        texts[id] = null;
+        for (int i = 0; i + 3 <= normalized.length(); i++) {
+            Long key = key(normalized, i);
+            PostingList list = postings.get(key);
+            if (list != null && list.remove(id) && list.isEmpty()) {
+                postings.remove(key);
+            }
+        }
+    }
+    
+    /**
+     * Finds the ids whose text contains a search string, as returned by
+     * {@link #term(String, boolean)}. The result may belong to the index, so
+     * it must not be changed.
+     * 
+     * @param term the search string
+     * @param all every id, for search strings too short to have a trigram
+     */
+    PostingList find(String term, PostingList all) {
+        if (term.isEmpty()) {
+            return new PostingList();
+        }
+        if (term.length() == 3) {
+            // The trigram's own list is exactly the answer
+            PostingList list = postings.get(key(term, 0));
+            return list == null ? new PostingList() : list;
+        }
+        PostingList candidates = term.length() < 3 ? all : candidates(term);
+        PostingList result = new PostingList();
+        candidates.forEach(id -> {
+            SearchIndex.checkCancelled();
+            if (matches(id, term)) {
+                result.add(id);
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * Returns at most how many ids contain a search string: the size of its
+     * smallest trigram list.
+     */
+    int estimate(String term, int all) {
+        if (term.length() < 3) {
+            return term.isEmpty() ? 0 : all;
+        }
+        int min = all;
+        for (int i = 0; i + 3 <= term.length(); i++) {
+            PostingList list = postings.get(key(term, i));
+            min = Math.min(min, list == null ? 0 : list.size());
+        }
+        return min;
+    }
+    
+    /**
+     * Checks one id's text for a search string.
+     */
+    boolean matches(int id, String term) {
+        String text = id < texts.length ? texts[id] : null;
+        return text != null && !term.isEmpty() && text.contains(term);
+    }
+    
+    /**
+     * Rates how well an id's text matches a search string, for ordering
+     * results: 3 if it's the whole text, 2 if the text starts with it, 1 if
+     * a word does, 0 if it's only inside a word, and -1 if it isn't there.
+     */
+    int rank(int id, String term) {
+        if (!matches(id, term)) {
+            return -1;
+        }
+        String text = texts[id];
+        String word = term.startsWith(" ") ? term : " " + term;
+        if (text.equals(word)) {
+            return 3;
+        }
+        if (text.startsWith(word)) {
+            return 2;
+        }
+        return text.contains(word) ? 1 : 0;
+    }
+    
+    /**
+     * Ids that have every trigram of the search string, smallest list first.
+     */
+    private PostingList candidates(String term) {
+        PostingList[] lists = new PostingList[term.length() - 2];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = postings.get(key(term, i));
+            if (lists[i] == null) {
+                return new PostingList();
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size(), b.size()));
+        PostingList result = lists[0];
+        for (int i = 1; i < lists.length && !result.isEmpty(); i++) {
+            result = PostingList.and(result, lists[i]);
+        }
+        return result;
+    }
+    
+    /**
+     * Turns what the user typed into the string to search for. A prefix
+     * search gets the space that starts every word.
+     */
+    static String term(String text, boolean prefix) {
+        String normalized = normalize(text);
+        if (normalized.isEmpty()) {
+            return "";
+        }
+        return prefix ? normalized : normalized.substring(1);
+    }
+    
+    /**
+     * Lowercases text and turns each run of anything but letters and digits
+     * into one space, with a space in front: "IMG_0042.jpg" is " img 0042 jpg".
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder result = new StringBuilder(text.length() + 1);
+        boolean space = true;
+        result.append(' ');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                result.append(c);
+                space = false;
+            } else if (!space) {
+                result.append(' ');
+                space = true;
+            }
+        }
+        int end = result.length();
+        while (end > 0 && result.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return end == 0 ? "" : result.substring(0, end).toLowerCase(Locale.ROOT);
+    }
+    
+    private static Long key(String text, int start) {
+        return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+    }
+}
+
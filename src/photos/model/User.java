@@ -1,8 +1,16 @@
 package photos.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * User class. Each user has a username, optional password, and their own 
@@ -16,6 +24,10 @@ public class User implements Serializable {
     private String username;
     private String password;
     private List<Album> albums;
+    private transient List<ModelListener> listeners;
+    private transient volatile boolean dirty;
+    private transient volatile long epoch;
+    private transient SearchIndex searchIndex;
     
     /**
      * Creates a user with just a username (no password).
@@ -93,7 +105,10 @@ public class User implements Serializable {
                 return false;
             }
         }
-        return albums.add(album);
+        albums.add(album);
+        album.setOwner(this);
+        fire(l -> l.albumAdded(this, album));
+        return true;
     }
     
     /**
@@ -103,7 +118,11 @@ public class User implements Serializable {
      * @return true if the album was removed, false if it wasn't in the collection
      */
     public boolean removeAlbum(Album album) {
-        return albums.remove(album);
+        if (!albums.remove(album)) {
+            return false;
+        }
+        fire(l -> l.albumRemoved(this, album));
+        return true;
     }
     
     /**
@@ -130,5 +149,151 @@ public class User implements Serializable {
     public boolean hasAlbum(String albumName) {
         return getAlbumByName(albumName) != null;
     }
+    
+    /**
+     * Finds a photo in any of the user's albums by its file path. Returns null 
+     * if the user doesn't have it.
+     * 
+     * @param filePath the file path to look for
+     * @return the user's photo for that file, or null if not found
+     */
+    public Photo findPhoto(String filePath) {
+        for (Album album : albums) {
+            for (Photo photo : album.getPhotos()) {
+                if (photo.getFilePath().equals(filePath)) {
+                    return photo;
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the index used to search this user's photos. It's built the 
+     * first time it's asked for and kept up to date after that.
+     * 
+     * @return the user's search index
+     */
+    public SearchIndex getSearchIndex() {
+        if (searchIndex == null) {
+            searchIndex = SearchIndex.build(this);
+        }
+        return searchIndex;
+    }
+    
+    /**
+     * Registers a listener that gets told about changes to this user's albums 
+     * and photos.
+     * 
+     * @param listener the listener to add
+     */
+    public void addListener(ModelListener listener) {
+        if (listeners == null) {
+            listeners = new ArrayList<>();
+        }
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+    
+    /**
+     * Unregisters a listener added with {@link #addListener(ModelListener)}.
+     * 
+     * @param listener the listener to remove
+     */
+    public void removeListener(ModelListener listener) {
+        if (listeners != null) {
+            listeners.remove(listener);
+        }
+    }
+    
+    /**
+     * Passes a change event to every registered listener and marks the user 
+     * as changed. Albums and photos report their changes through here too.
+     */
+    void fire(Consumer<ModelListener> event) {
+        if (listeners != null) {
+            for (ModelListener listener : new ArrayList<>(listeners)) {
+                event.accept(listener);
+            }
+        }
+        // Marked after the listeners ran, so a save that sees the flag also sees what they recorded
+        dirty = true;
+        epoch++;
+    }
+    
+    /**
+     * Returns a number that goes up with every change to this user's albums, 
+     * photos and tags. Something worked out from the user at one epoch is 
+     * still right as long as the epoch hasn't moved.
+     * 
+     * @return the user's current epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+    
+    /**
+     * Returns true if anything about this user changed since the last save.
+     * 
+     * @return true if the user has unsaved changes
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+    
+    /**
+     * Clears the changed flag. Returns whether it was set.
+     */
+    boolean clearDirty() {
+        boolean wasDirty = dirty;
+        dirty = false;
+        return wasDirty;
+    }
+    
+    /**
+     * Makes every album hold the same Photo object for the same file. Saves 
+     * from before photos were shared could have a separate copy in each 
+     * album, and since changes are journaled by path only the first copy 
+     * would ever get them. Call right after loading, before replaying a 
+     * journal. The first copy is kept and takes in the others (see 
+     * {@link Photo#absorb}).
+     * 
+     * @return true if any copies were merged
+     */
+    boolean mergeDuplicatePhotos() {
+        Map<String, Photo> byPath = new HashMap<>();
+        boolean merged = false;
+        for (Album album : albums) {
+            List<Photo> photos = album.getPhotos();
+            Set<Photo> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            int kept = 0;
+            for (int i = 0; i < photos.size(); i++) {
+                Photo photo = photos.get(i);
+                Photo first = byPath.putIfAbsent(photo.getFilePath(), photo);
+                if (first != null && first != photo) {
+                    first.absorb(photo);
+                    photo = first;
+                    merged = true;
+                }
+                if (seen.add(photo)) {
+                    photos.set(kept++, photo);
+                }
+            }
+            photos.subList(kept, photos.size()).clear();
+        }
+        return merged;
+    }
+    
+    /**
+     * Hooks the albums and photos back up to this user after loading, since 
+     * the owner links aren't saved.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        for (Album album : albums) {
+            album.setOwner(this);
+        }
+    }
 }
 
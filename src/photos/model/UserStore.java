@@ -0,0 +1,481 @@
+package photos.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores every user in their own shard file under data/users, with a change
+ * journal next to each shard. Edits only append to an in-memory journal 
+ * buffer; an {@link AutoSaver} thread writes them out shortly after and does 
+ * all the other shard file work too. Shards use the binary catalog format (see 
+ * {@link CatalogWriter}); older Java-serialized shards are still read and get 
+ * rewritten on the next save. A user's shard is only read when they're
+ * loaded (at login) and is closed again when they're released (at logout).
+ * A small index file lists every username and the tag types, and that's all
+ * that gets read at startup.
+ * 
+ * @author Photos Team
+ */
+class UserStore {
+    private static final int INDEX_MAGIC = 0x50484931;
+    
+    /** Once a user's journal is bigger than this, saving folds it into their shard. */
+    private static final long COMPACT_THRESHOLD = 1024L * 1024;
+    
+    private final File dir;
+    private final File indexFile;
+    private final Map<String, Shard> shards = new ConcurrentHashMap<>();
+    private final AutoSaver saver = new AutoSaver(this::saveAll, 1000, 5000);
+    
+    /**
+     * A loaded user along with their open journal.
+     */
+    private static class Shard {
+        final String username;
+        final User user;
+        final ChangeJournal journal;
+        volatile long generation;
+        /** True if the shard on disk is in the old format or had copies merged, and should be rewritten. */
+        volatile boolean legacy;
+        
+        Shard(String username, User user, ChangeJournal journal, long generation) {
+            this.username = username;
+            this.user = user;
+            this.journal = journal;
+            this.generation = generation;
+        }
+    }
+    
+    /**
+     * What was read from a shard file.
+     */
+    private static class ShardFile {
+        final User user;
+        final long generation;
+        final boolean legacy;
+        
+        ShardFile(User user, long generation, boolean legacy) {
+            this.user = user;
+            this.generation = generation;
+            this.legacy = legacy;
+        }
+    }
+    
+    /**
+     * Creates a store that keeps shards in the given directory and the index
+     * in the given file.
+     */
+    UserStore(File dir, File indexFile) {
+        this.dir = dir;
+        this.indexFile = indexFile;
+    }
+    
+    /**
+     * Returns true if the index file exists.
+     */
+    boolean hasIndex() {
+        return indexFile.exists();
+    }
+    
+    /**
+     * Reads the index file into the given username set and tag type list.
+     */
+    void readIndex(Set<String> usernames, List<String> tagTypes) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                throw new IOException("Not a user index: " + indexFile);
+            }
+            int userCount = in.readInt();
+            for (int i = 0; i < userCount; i++) {
+                usernames.add(in.readUTF());
+            }
+            int typeCount = in.readInt();
+            tagTypes.clear();
+            for (int i = 0; i < typeCount; i++) {
+                tagTypes.add(in.readUTF());
+            }
+        }
+    }
+    
+    /**
+     * Rewrites the index file with the given usernames and tag types.
+     */
+    void writeIndex(Collection<String> usernames, List<String> tagTypes) throws IOException {
+        dir.mkdirs();
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(usernames.size());
+            for (String username : usernames) {
+                out.writeUTF(username);
+            }
+            out.writeInt(tagTypes.size());
+            for (String tagType : tagTypes) {
+                out.writeUTF(tagType);
+            }
+        }
+        replace(tempFile, indexFile);
+    }
+    
+    /**
+     * Lists the usernames of every shard on disk. Used to rebuild the index
+     * if it goes missing.
+     */
+    Set<String> listShards() {
+        Set<String> usernames = new LinkedHashSet<>();
+        String[] names = dir.list((d, name) -> name.endsWith(".dat"));
+        if (names != null) {
+            for (String name : names) {
+                usernames.add(URLDecoder.decode(
+                    name.substring(0, name.length() - 4), StandardCharsets.UTF_8));
+            }
+        }
+        return usernames;
+    }
+    
+    /**
+     * Checks whether a user has a shard on disk or is loaded.
+     */
+    boolean exists(String username) {
+        return shards.containsKey(username) || shardFile(username).exists();
+    }
+    
+    /**
+     * Loads a user from their shard and replays their journal. Returns the
+     * already loaded user if they were loaded before. A missing shard gives a
+     * new empty user. Waits for any background saves of this user to finish 
+     * first, so a quick logout and login never reads stale files. Photos 
+     * saved without their size and orientation have them read from their 
+     * files here, once, and the results are journaled.
+     * 
+     * @param username the user to load
+     * @return the loaded user
+     */
+    User load(String username) throws IOException {
+        Shard loaded = shards.get(username);
+        if (loaded != null) {
+            return loaded.user;
+        }
+        return saver.call(() -> {
+            ShardFile shardFile = readShard(username);
+            User user = shardFile.user;
+            File journalFile = journalFile(username);
+            Map<String, User> replayUsers = new HashMap<>();
+            replayUsers.put(username, user);
+            long validLength = ChangeJournal.replay(journalFile, shardFile.generation, replayUsers, new ArrayList<>());
+            
+            // Photos saved before their size and orientation were recorded
+            // get them read here, so nothing reads headers on the JavaFX thread
+            Set<Photo> photos = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Album album : user.getAlbums()) {
+                photos.addAll(album.getPhotos());
+            }
+            List<Photo> read = PhotoIngest.readImageInfo(photos);
+            
+            ChangeJournal journal = new ChangeJournal(journalFile);
+            long generation = shardFile.generation;
+            if (validLength >= 0 && ChangeJournal.isOldFormat(journalFile)) {
+                // New records can't follow old ones, so fold the old journal in now
+                generation++;
+                writeShard(user, generation);
+                journal.reset(generation);
+            } else {
+                journal.open(generation, validLength);
+            }
+            Shard shard = new Shard(username, user, journal, generation);
+            shard.legacy = shardFile.legacy;
+            attach(shard);
+            for (Photo photo : read) {
+                journal.imageInfoChanged(user, photo);
+            }
+            return user;
+        });
+    }
+    
+    /**
+     * Writes the shard for a brand new user and starts tracking them as loaded.
+     * 
+     * @param user the new user
+     */
+    void create(User user) throws IOException {
+        saver.call(() -> {
+            dir.mkdirs();
+            Shard shard = new Shard(user.getUsername(), user,
+                new ChangeJournal(journalFile(user.getUsername())), 1);
+            writeShard(user, shard.generation);
+            shard.journal.reset(shard.generation);
+            attach(shard);
+            return null;
+        });
+    }
+    
+    /**
+     * Writes shards for a batch of users in parallel without loading them. Used
+     * when migrating from the old single users.dat file, before anything else 
+     * is running.
+     * 
+     * @param users the users to write
+     */
+    void createAll(Collection<User> users) throws IOException {
+        dir.mkdirs();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (User user : users) {
+            tasks.add(() -> {
+                writeShard(user, 1);
+                ChangeJournal journal = new ChangeJournal(journalFile(user.getUsername()));
+                journal.reset(1);
+                journal.close();
+                return null;
+            });
+        }
+        runParallel(tasks);
+    }
+    
+    /**
+     * Deletes a user's shard and journal in the background.
+     * 
+     * @param username the user to delete
+     */
+    void delete(String username) {
+        Shard shard = detach(username);
+        saver.submit(() -> {
+            if (shard != null) {
+                shard.journal.close();
+            }
+            Files.deleteIfExists(shardFile(username).toPath());
+            Files.deleteIfExists(journalFile(username).toPath());
+        });
+    }
+    
+    /**
+     * Drops a loaded user from memory. Their last changes are written out in 
+     * the background, so this returns right away.
+     * 
+     * @param username the user to release
+     */
+    void release(String username) {
+        Shard shard = detach(username);
+        if (shard == null) {
+            return;
+        }
+        QueryCache.shared().clear(shard.user);
+        saver.submit(() -> {
+            shard.journal.flush();
+            if (needsCompaction(shard)) {
+                compact(shard);
+            }
+            shard.journal.close();
+        });
+    }
+    
+    /**
+     * Saves everything right away and waits for it to finish.
+     */
+    void save() throws IOException {
+        saver.saveNow();
+    }
+    
+    /**
+     * Saves everything and stops the autosave thread. Used when the app quits.
+     */
+    void shutdown() throws IOException {
+        saver.shutdown();
+    }
+    
+    /**
+     * Saves every loaded user. Runs on the autosave thread. Users nobody changed 
+     * aren't touched, journals with changes get flushed, and shards whose 
+     * journal got too big are rewritten in parallel.
+     */
+    private void saveAll() throws IOException {
+        List<Callable<Void>> compactions = new ArrayList<>();
+        for (Shard shard : shards.values()) {
+            if (shard.user.clearDirty() || shard.journal.hasPending()) {
+                shard.journal.flush();
+            }
+            if (needsCompaction(shard)) {
+                compactions.add(() -> {
+                    compact(shard);
+                    return null;
+                });
+            }
+        }
+        runParallel(compactions);
+    }
+    
+    /**
+     * Starts tracking a loaded user and hooks their journal up to the autosaver.
+     */
+    private void attach(Shard shard) {
+        shard.journal.setOnAppend(saver::markDirty);
+        shard.user.addListener(shard.journal);
+        shards.put(shard.username, shard);
+    }
+    
+    /**
+     * Stops tracking a user. Changes made to them after this aren't saved.
+     */
+    private Shard detach(String username) {
+        Shard shard = shards.remove(username);
+        if (shard != null) {
+            shard.user.removeListener(shard.journal);
+        }
+        return shard;
+    }
+    
+    /**
+     * Returns true if a shard's journal is too big, or if the shard on disk 
+     * is still in the old format or has copies of photos that were merged.
+     */
+    private boolean needsCompaction(Shard shard) {
+        return shard.legacy || shard.journal.size() > COMPACT_THRESHOLD;
+    }
+    
+    /**
+     * Runs several save tasks at once on worker threads and waits for all of them.
+     */
+    private void runParallel(List<Callable<Void>> tasks) throws IOException {
+        if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            return;
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    task.call();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (Exception e) {
+                    throw new UncheckedIOException(new IOException(e));
+                }
+            }));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Folds a user's journal into a new shard and starts the journal over. 
+     * This works from the files on disk rather than the live user, so it can 
+     * run in the background while the user keeps editing. Changes made in the 
+     * meantime stay pending in the journal and are written after the reset.
+     */
+    private void compact(Shard shard) throws IOException {
+        shard.journal.flush();
+        ShardFile shardFile = readShard(shard.username);
+        Map<String, User> replayUsers = new HashMap<>();
+        replayUsers.put(shard.username, shardFile.user);
+        ChangeJournal.replay(journalFile(shard.username), shardFile.generation, replayUsers, new ArrayList<>());
+        
+        long generation = shardFile.generation + 1;
+        writeShard(shardFile.user, generation);
+        shard.generation = generation;
+        shard.legacy = false;
+        shard.journal.reset(generation);
+    }
+    
+    /**
+     * Reads a user's shard file, in either the catalog or the old format.
+     * Copies of the same photo in different albums are merged before the 
+     * journal is replayed onto it, and the shard is then treated like an 
+     * old one so it gets rewritten.
+     */
+    private ShardFile readShard(String username) throws IOException {
+        File file = shardFile(username);
+        if (!file.exists()) {
+            return new ShardFile(new User(username), 0, false);
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            if (CatalogReader.isCatalog(in)) {
+                CatalogReader reader = new CatalogReader(in);
+                long generation = reader.getGeneration();
+                User user = reader.readUser();
+                return new ShardFile(user, generation, user.mergeDuplicatePhotos());
+            }
+            // Shard from before the catalog format, written with Java serialization
+            ObjectInputStream ois = new ObjectInputStream(in);
+            long generation = ois.readLong();
+            User user = (User) ois.readObject();
+            user.mergeDuplicatePhotos();
+            return new ShardFile(user, generation, true);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Bad shard for " + username, e);
+        }
+    }
+    
+    /**
+     * Writes a user to their shard file. The shard goes to a temp file first 
+     * and is renamed into place, so a crash never leaves a half-written shard.
+     */
+    private void writeShard(User user, long generation) throws IOException {
+        File target = shardFile(user.getUsername());
+        File tempFile = new File(target.getPath() + ".tmp");
+        try (CatalogWriter writer = new CatalogWriter(new FileOutputStream(tempFile), generation)) {
+            writer.writeUser(user);
+        }
+        replace(tempFile, target);
+    }
+    
+    private File shardFile(String username) {
+        return new File(dir, fileName(username) + ".dat");
+    }
+    
+    private File journalFile(String username) {
+        return new File(dir, fileName(username) + ".journal");
+    }
+    
+    /**
+     * Turns a username into something safe to use as a file name.
+     */
+    private static String fileName(String username) {
+        return URLEncoder.encode(username, StandardCharsets.UTF_8);
+    }
+    
+    private static void replace(File source, File target) throws IOException {
+        Files.move(source.toPath(), target.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
+